@@ -0,0 +1,41 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+// Reusable direct buffers aligned for O_DIRECT reads and writes
+public class AlignedBufferPool
+{
+    private final int size;
+    private final int alignment;
+    private final int maxPooled;
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+    public AlignedBufferPool(int size, int alignment, int maxPooled)
+    {
+        this.size = size;
+        this.alignment = alignment;
+        this.maxPooled = maxPooled;
+    }
+
+    public int bufferSize()
+    {
+        return size;
+    }
+
+    // A cleared buffer of bufferSize() bytes starting on an aligned address
+    public synchronized ByteBuffer acquire()
+    {
+        ByteBuffer b = free.poll();
+        if (b == null)
+        {
+            b = ByteBuffer.allocateDirect(size + alignment).alignedSlice(alignment);
+            b.limit(size);
+        }
+        b.clear().limit(size);
+        return b;
+    }
+
+    public synchronized void release(ByteBuffer b)
+    {
+        if (free.size() < maxPooled) free.push(b);
+    }
+}
@@ -5,10 +5,25 @@ public class BTree
     private final IndexFileManager idx;
     public static final int T = BTreeNode.T;
 
+    // Keep subtree key counts up to date on every insert
+    private final boolean counted;
+
+    // Optional write buffer, null unless enableWriteBuffer was called
+    private MemTable buffer;
+
+    // Split point for a full node on the right edge when the new key is past its end.
+    // The left node keeps 17 keys and the new right node starts with 1, so ascending
+    // keys leave nodes about 90% full instead of half full.
+    private static final int APPEND_SPLIT = BTreeNode.MAX_KEYS - 2;
+
+    // Rightmost leaf seen on the last insert down the right edge, or 0 if unknown
+    private long rightLeafId = 0L;
+
     // Constructs BTree
     public BTree(IndexFileManager idx)
     {
         this.idx = idx;
+        this.counted = idx.hasCounts();
     }
 
     public IndexFileManager getManager()
@@ -16,28 +31,88 @@ public class BTree
         return idx;
     }
 
-    // Search for key in BTree
+    // Search for key in BTree. A key inserted more than once keeps every
+    // value, in insert order, and search returns the first one inserted.
     public long search(long key) throws IOException
     {
         long rootId = idx.getRootBlockId();
         // Return value, or, if not found then -1
-        if (rootId == 0L) return -1L; // empty tree
-        return searchRecursive(rootId, key);
+        long value = rootId == 0L ? -1L : searchRecursive(rootId, key, -1L);
+        // Buffered inserts are newer than anything in the tree
+        if (value == -1L && buffer != null)
+        {
+            int i = buffer.find(key);
+            if (i >= 0) return buffer.getValue(i);
+        }
+        return value;
     }
 
-    // Search helper
-    private long searchRecursive(long nodeId, long key) throws IOException
+    // Search helper. Equal keys further down to the left were inserted
+    // earlier, so keep going after a match and return the last one found.
+    private long searchRecursive(long nodeId, long key, long found) throws IOException
     {
         BTreeNode node = idx.readNode(nodeId);
         int i = 0;
         while (i < node.getNumKeys() && key > node.getKey(i)) i++;
-        if (i < node.getNumKeys() && key == node.getKey(i)) return node.getValue(i);
-        if (node.isLeaf()) return -1L;
-        return searchRecursive(node.getChild(i), key);
+        if (i < node.getNumKeys() && key == node.getKey(i)) found = node.getValue(i);
+        if (node.isLeaf()) return found;
+        return searchRecursive(node.getChild(i), key, found);
+    }
+
+    // Send inserts through a sorted in-memory buffer, logged to logFile.
+    // Anything left in the log from an earlier run is merged first.
+    public void enableWriteBuffer(String logFile, int threshold) throws IOException
+    {
+        if (buffer != null) return;
+        buffer = new MemTable(logFile, threshold, idx.getMergedLog());
+        if (buffer.size() > 0) mergeBuffer();
+    }
+
+    // Merge the buffer into the tree and stop buffering
+    public void disableWriteBuffer() throws IOException
+    {
+        if (buffer == null) return;
+        mergeBuffer();
+        buffer.close();
+        buffer = null;
+    }
+
+    // Force buffered inserts to the log, so they survive a crash
+    public void commit() throws IOException
+    {
+        if (buffer != null) buffer.sync();
+    }
+
+    // Insert buffered pairs in key order, so each leaf is visited once per batch
+    public void mergeBuffer() throws IOException
+    {
+        if (buffer == null || buffer.size() == 0) return;
+        // Every pair must be in the log first: a crash during the merge rolls
+        // the tree back, and the next open replays the whole log
+        buffer.sync();
+        idx.beginUpdate();
+        for (int i = 0; i < buffer.size(); i++)
+        {
+            insertIntoTree(buffer.getKey(i), buffer.getValue(i));
+        }
+        // Pages on disk and this log recorded as merged before it is dropped
+        idx.commitUpdate(buffer.getGeneration());
+        buffer.clear();
     }
 
     // Insert
     public void insert(long key, long value) throws IOException
+    {
+        if (buffer != null)
+        {
+            buffer.put(key, value);
+            if (buffer.isFull()) mergeBuffer();
+            return;
+        }
+        insertIntoTree(key, value);
+    }
+
+    private void insertIntoTree(long key, long value) throws IOException
     {
         long rootId = idx.getRootBlockId();
         if (rootId == 0L)
@@ -48,9 +123,25 @@ public class BTree
             root.insertKey(0, key, value);
             idx.writeNode(root);
             idx.setRootBlockId(newRootId);
+            rightLeafId = newRootId;
             return;
         }
 
+        // Append fast path: a key past the end of the tree goes straight into the
+        // rightmost leaf if it has room, without descending from the root.
+        // Not with counts, which need every node on the path updated.
+        if (rightLeafId != 0L && !counted)
+        {
+            BTreeNode leaf = idx.readNode(rightLeafId);
+            int n = leaf.getNumKeys();
+            if (n > 0 && n < BTreeNode.MAX_KEYS && key > leaf.getKey(n - 1))
+            {
+                leaf.insertKey(n, key, value);
+                idx.writeNode(leaf);
+                return;
+            }
+        }
+
         BTreeNode root = idx.readNode(rootId);
         if (root.getNumKeys() == BTreeNode.MAX_KEYS)
         {
@@ -60,7 +151,7 @@ public class BTree
             newRoot.setChild(0, rootId);
             root.setParentID(newRootId);
 
-            splitChild(newRoot, 0, root);
+            splitChild(newRoot, 0, root, splitPoint(root, true, key));
 
             // Write new root
             idx.writeNode(root);
@@ -70,16 +161,24 @@ public class BTree
             idx.setRootBlockId(newRootId);
 
             // Insert into NotFull node
-            insertNotFull(newRoot, key, value);
+            insertNotFull(newRoot, key, value, true);
         }
         else
         {
-            insertNotFull(root, key, value);
+            insertNotFull(root, key, value, true);
         }
     }
 
-    // InsertNotFull node
-    private void insertNotFull(BTreeNode node, long key, long value) throws IOException
+    // Where to split a full node: near its end for appends on the right edge,
+    // otherwise at the median
+    private int splitPoint(BTreeNode full, boolean rightEdge, long key)
+    {
+        if (rightEdge && key > full.getKey(BTreeNode.MAX_KEYS - 1)) return APPEND_SPLIT;
+        return BTreeNode.T - 1;
+    }
+
+    // InsertNotFull node, rightEdge is true if node is on the rightmost path
+    private void insertNotFull(BTreeNode node, long key, long value, boolean rightEdge) throws IOException
     {
         int i = node.getNumKeys() - 1;
         if (node.isLeaf())
@@ -89,6 +188,7 @@ public class BTree
             node.insertKey(i + 1, key, value);
             // Mark node "dirty"
             idx.writeNode(node);
+            if (rightEdge) rightLeafId = node.getBlockID();
         }
         else
         {
@@ -97,41 +197,53 @@ public class BTree
             i++;
             long childId = node.getChild(i);
             BTreeNode child = idx.readNode(childId);
+            boolean childRightEdge = rightEdge && i == node.getNumKeys();
 
             if (child.getNumKeys() == BTreeNode.MAX_KEYS)
             {
-                splitChild(node, i, child);
-                if (key > node.getKey(i)) i++;
+                splitChild(node, i, child, splitPoint(child, childRightEdge, key));
+                // An equal key goes right of the median, after the older copies
+                if (key >= node.getKey(i)) i++;
+                childRightEdge = rightEdge && i == node.getNumKeys();
                 child = idx.readNode(node.getChild(i));
             }
-            insertNotFull(child, key, value);
+            if (counted)
+            {
+                // The key will land somewhere under child i
+                node.setCount(i, node.getCount(i) + 1);
+                idx.writeNode(node);
+            }
+            insertNotFull(child, key, value, childRightEdge);
         }
     }
 
-    // Split child node
-    private void splitChild(BTreeNode parent, int index, BTreeNode fullChild) throws IOException
+    // Split child node, keys before split stay and keys after it move to a new node
+    private void splitChild(BTreeNode parent, int index, BTreeNode fullChild, int split) throws IOException
     {
-        int T = BTreeNode.T;
+        // The rightmost leaf may be about to move
+        if (fullChild.getBlockID() == rightLeafId) rightLeafId = 0L;
 
         long newChildId = idx.allocateBlock();
         BTreeNode newChild = new BTreeNode(newChildId, parent.getBlockID(), fullChild.isLeaf());
 
-        long medianKey = fullChild.getKey(T - 1);
-        long medianValue = fullChild.getValue(T - 1);
+        long medianKey = fullChild.getKey(split);
+        long medianValue = fullChild.getValue(split);
+        int moved = BTreeNode.MAX_KEYS - 1 - split;
 
         // Copy to new node
-        for (int j = 0; j < T - 1; j++)
+        for (int j = 0; j < moved; j++)
         {
-            newChild.insertKey(j, fullChild.getKey(j + T), fullChild.getValue(j + T));
+            newChild.insertKey(j, fullChild.getKey(j + split + 1), fullChild.getValue(j + split + 1));
         }
 
         // If full
         if (!fullChild.isLeaf())
         {
-            for (int j = 0; j < T; j++)
+            for (int j = 0; j <= moved; j++)
             {
-                long movedChildId = fullChild.getChild(j + T);
+                long movedChildId = fullChild.getChild(j + split + 1);
                 newChild.setChild(j, movedChildId);
+                newChild.setCount(j, fullChild.getCount(j + split + 1));
                 if (movedChildId != 0L)
                 {
                     BTreeNode movedChild = idx.readNode(movedChildId);
@@ -141,16 +253,19 @@ public class BTree
             }
         }
 
-        fullChild.setNumKeys(T - 1);
-        fullChild.clearKeysFrom(T - 1);
-        fullChild.clearChildrenFrom(T);
+        fullChild.setNumKeys(split);
+        fullChild.clearKeysFrom(split);
+        fullChild.clearChildrenFrom(split + 1);
 
         // Insert new child
         for (int j = parent.getNumKeys(); j >= index + 1; j--)
         {
             parent.setChild(j + 1, parent.getChild(j));
+            parent.setCount(j + 1, parent.getCount(j));
         }
         parent.setChild(index + 1, newChildId);
+        parent.setCount(index, fullChild.subtreeSize());
+        parent.setCount(index + 1, newChild.subtreeSize());
 
         parent.insertKey(index, medianKey, medianValue);
         newChild.setParentID(parent.getBlockID());
@@ -161,8 +276,86 @@ public class BTree
         idx.writeNode(parent);
     }
 
+    // Number of keys below key, or at or below it if inclusive.
+    // Reads one node per level using the subtree counts.
+    public long rank(long key, boolean inclusive) throws IOException
+    {
+        requireCounts();
+        mergeBuffer();
+        long rank = 0L;
+        long nodeId = idx.getRootBlockId();
+        while (nodeId != 0L)
+        {
+            BTreeNode node = idx.readNode(nodeId);
+            int i = 0;
+            while (i < node.getNumKeys() && (inclusive ? node.getKey(i) <= key : node.getKey(i) < key))
+            {
+                // Child i and key i are both before key
+                if (!node.isLeaf()) rank += node.getCount(i);
+                rank++;
+                i++;
+            }
+            if (node.isLeaf()) break;
+            nodeId = node.getChild(i);
+        }
+        return rank;
+    }
+
+    // Number of keys with lo <= key <= hi
+    public long count(long lo, long hi) throws IOException
+    {
+        if (lo > hi) return 0L;
+        return rank(hi, true) - rank(lo, false);
+    }
+
+    // Total number of keys
+    public long size() throws IOException
+    {
+        requireCounts();
+        mergeBuffer();
+        long rootId = idx.getRootBlockId();
+        return rootId == 0L ? 0L : idx.readNode(rootId).subtreeSize();
+    }
+
+    // The k-th smallest key and its value, k starting at 1, or null if there are fewer keys
+    public long[] select(long k) throws IOException
+    {
+        requireCounts();
+        mergeBuffer();
+        if (k < 1) return null;
+        long nodeId = idx.getRootBlockId();
+        while (nodeId != 0L)
+        {
+            BTreeNode node = idx.readNode(nodeId);
+            int i = 0;
+            for (; i < node.getNumKeys(); i++)
+            {
+                long below = node.isLeaf() ? 0L : node.getCount(i);
+                if (k <= below) break;
+                k -= below;
+                if (k == 1) return new long[] { node.getKey(i), node.getValue(i) };
+                k--;
+            }
+            if (node.isLeaf()) return null;
+            nodeId = node.getChild(i);
+        }
+        return null;
+    }
+
+    private void requireCounts()
+    {
+        if (!counted) throw new IllegalStateException("Index was not created with subtree counts");
+    }
+
     public void close() throws IOException
     {
-        idx.flushAndClose();
+        try
+        {
+            disableWriteBuffer();
+        }
+        finally
+        {
+            idx.flushAndClose();
+        }
     }
 }
\ No newline at end of file
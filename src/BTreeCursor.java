@@ -0,0 +1,90 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// Walks the keys of a BTree in order, holding only the nodes on the current path.
+// It reads through the cache, or through a Snapshot for a frozen view.
+public class BTreeCursor implements BulkLoader.Source
+{
+    private final NodeReader reader;
+    private final Deque<Frame> stack = new ArrayDeque<>();
+    private boolean positioned;
+    private long key;
+    private long value;
+
+    // A node on the current path and the index of its next key
+    private static class Frame
+    {
+        BTreeNode node; int idx;
+        Frame(BTreeNode n, int i)
+        {
+            node = n; idx = i;
+        }
+    }
+
+    public BTreeCursor(NodeReader reader)
+    {
+        this.reader = reader;
+    }
+
+    // Position before the first key >= lo
+    public void seek(long lo) throws IOException
+    {
+        stack.clear();
+        positioned = true;
+        long blockId = reader.getRootBlockId();
+        while (blockId != 0L)
+        {
+            BTreeNode node = reader.readNodeForScan(blockId);
+            int i = 0;
+            while (i < node.getNumKeys() && node.getKey(i) < lo) i++;
+            stack.addLast(new Frame(node, i));
+            if (node.isLeaf()) break;
+            blockId = node.getChild(i);
+        }
+    }
+
+    // Move to the next key, returns false when there are no more
+    public boolean next() throws IOException
+    {
+        if (!positioned) seek(Long.MIN_VALUE);
+        while (!stack.isEmpty())
+        {
+            Frame top = stack.getLast();
+            BTreeNode node = top.node;
+            if (top.idx < node.getNumKeys())
+            {
+                key = node.getKey(top.idx);
+                value = node.getValue(top.idx);
+                top.idx++;
+                // Everything in the next child comes before the next key here
+                if (!node.isLeaf()) pushLeft(node.getChild(top.idx));
+                return true;
+            }
+            stack.removeLast();
+        }
+        return false;
+    }
+
+    // Push the path down to the leftmost leaf under blockId
+    private void pushLeft(long blockId) throws IOException
+    {
+        while (blockId != 0L)
+        {
+            BTreeNode node = reader.readNodeForScan(blockId);
+            stack.addLast(new Frame(node, 0));
+            if (node.isLeaf()) break;
+            blockId = node.getChild(0);
+        }
+    }
+
+    public long key()
+    {
+        return key;
+    }
+
+    public long value()
+    {
+        return value;
+    }
+}
@@ -14,8 +14,13 @@ public class BTreeNode
     private long[] keys;
     private long[] values;
     private long[] children;
+    // Keys in the subtree under each child, only stored in counted index files
+    private long[] counts;
     private boolean isLeaf;
 
+    // In counted files a child slot holds the count in the high 32 bits
+    private static final long LOW_32 = 0xFFFFFFFFL;
+
     public BTreeNode(long blockID, long parentID, boolean isLeaf)
     {
         this.blockID = blockID;
@@ -26,10 +31,12 @@ public class BTreeNode
         this.keys = new long[MAX_KEYS];
         this.values = new long[MAX_KEYS];
         this.children = new long[MAX_CHILDREN];
+        this.counts = new long[MAX_CHILDREN];
 
         Arrays.fill(this.keys, 0L);
         Arrays.fill(this.values, 0L);
         Arrays.fill(this.children, 0L);
+        Arrays.fill(this.counts, 0L);
     }
 
     public long getBlockID()
@@ -69,6 +76,26 @@ public class BTreeNode
         return children[i];
     }
 
+    public long getCount(int i)
+    {
+        return counts[i];
+    }
+    public void setCount(int i, long count)
+    {
+        counts[i] = count;
+    }
+
+    // Keys in this node and everything under it
+    public long subtreeSize()
+    {
+        long n = numKeys;
+        if (!isLeaf)
+        {
+            for (int i = 0; i <= numKeys; i++) n += counts[i];
+        }
+        return n;
+    }
+
     // Sets child
     public void setChild(int index, long childBlockId)
     {
@@ -106,6 +133,7 @@ public class BTreeNode
         for (int i = startIndex; i < MAX_CHILDREN; i++)
         {
             children[i] = 0L;
+            counts[i] = 0L;
         }
         boolean leaf = true;
         for (long c : children)
@@ -120,21 +148,59 @@ public class BTreeNode
 
     // Serialize to 512 bytes
     public byte[] toBytes()
+    {
+        return toBytes(false);
+    }
+
+    // Serialize to 512 bytes, packing subtree counts in with the children if counted
+    public byte[] toBytes(boolean counted)
     {
         ByteBuffer bb = ByteBuffer.allocate(BLOCK_BYTES);
+        writeTo(bb, counted);
+        return bb.array();
+    }
+
+    // Write the 512 byte block at the buffer's position, such as a cache frame
+    public void writeTo(ByteBuffer bb, boolean counted)
+    {
+        int start = bb.position();
         bb.putLong(blockID);
         bb.putLong(parentID);
         bb.putLong((long) numKeys);
         for (int i = 0; i < MAX_KEYS; i++) bb.putLong(keys[i]);
         for (int i = 0; i < MAX_KEYS; i++) bb.putLong(values[i]);
-        for (int i = 0; i < MAX_CHILDREN; i++) bb.putLong(children[i]);
-        return bb.array();
+        for (int i = 0; i < MAX_CHILDREN; i++)
+        {
+            if (!counted)
+            {
+                bb.putLong(children[i]);
+                continue;
+            }
+            if ((children[i] & ~LOW_32) != 0L || (counts[i] & ~LOW_32) != 0L)
+            {
+                throw new IllegalStateException("Block id or subtree count too large for a counted index");
+            }
+            bb.putLong(counts[i] << 32 | children[i]);
+        }
+        // rest zero
+        while (bb.position() < start + BLOCK_BYTES) bb.put((byte) 0);
     }
 
     // Deserialize node
     public static BTreeNode fromBytes(byte[] data)
     {
-        ByteBuffer bb = ByteBuffer.wrap(data);
+        return fromBytes(data, false);
+    }
+
+    // Deserialize node, unpacking subtree counts if counted
+    public static BTreeNode fromBytes(byte[] data, boolean counted)
+    {
+        return fromBuffer(ByteBuffer.wrap(data), counted);
+    }
+
+    // Deserialize the block at the buffer's position
+    public static BTreeNode fromBuffer(ByteBuffer bb, boolean counted)
+    {
         long blockID = bb.getLong();
         long parentID = bb.getLong();
         int numKeys = (int) bb.getLong();
@@ -144,7 +210,19 @@ public class BTreeNode
 
         for (int i = 0; i < MAX_KEYS; i++) node.keys[i] = bb.getLong();
         for (int i = 0; i < MAX_KEYS; i++) node.values[i] = bb.getLong();
-        for (int i = 0; i < MAX_CHILDREN; i++) node.children[i] = bb.getLong();
+        for (int i = 0; i < MAX_CHILDREN; i++)
+        {
+            long slot = bb.getLong();
+            if (counted)
+            {
+                node.children[i] = slot & LOW_32;
+                node.counts[i] = slot >>> 32;
+            }
+            else
+            {
+                node.children[i] = slot;
+            }
+        }
 
         node.isLeaf = true;
         for (long c : node.children)
@@ -0,0 +1,299 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Drives a BTree with a mix of searches and inserts from several threads
+// for a fixed time, and measures throughput, latency and block I/O.
+//
+// Searches pick keys, using the chosen distribution, from an evenly spaced
+// sample of the keys in the tree plus the keys inserted so far, so they hit
+// whatever keys the tree really holds. Inserts add new keys past the largest.
+public class Bench
+{
+    public static final String[] DISTRIBUTIONS = { "uniform", "zipfian", "sequential", "latest" };
+    // Skew used by YCSB
+    private static final double ZIPF_THETA = 0.99;
+    // Most existing keys kept to search for (32MB)
+    private static final int MAX_SAMPLE = 1 << 22;
+
+    private final BTree tree;
+    private final double readRatio;
+    private final String distribution;
+    private final int threads;
+    private final long durationMillis;
+
+    // BTree is not thread safe for writers, so searches share the lock and inserts take it alone
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Sorted sample of the keys in the tree, set by sampleKeys
+    private long[] sample = new long[0];
+    private int sampleSize;
+    // First key inserted, one past the largest key in the tree
+    private long firstNew;
+    // Next key to insert, every key from firstNew up to it is present
+    private final AtomicLong nextKey = new AtomicLong();
+    private Zipfian zipf;
+
+    private LatencyHistogram latencies;
+    private long reads;
+    private long found;
+    private long inserts;
+    private long elapsedNanos;
+    private long blockReads;
+    private long blockWrites;
+
+    public Bench(BTree tree, double readRatio, String distribution, int threads, long durationMillis)
+    {
+        this.tree = tree;
+        this.readRatio = readRatio;
+        this.distribution = distribution;
+        this.threads = threads;
+        this.durationMillis = durationMillis;
+    }
+
+    // Count the keys in the tree with one in-order walk and keep every
+    // stride-th one, doubling the stride whenever the sample fills up.
+    // Returns the number of keys. Call before run.
+    public long sampleKeys() throws IOException
+    {
+        long[] keys = new long[1024];
+        int size = 0;
+        long stride = 1L;
+        long count = 0L;
+        long last = -1L;
+        BTreeCursor c = new BTreeCursor(tree.getManager());
+        while (c.next())
+        {
+            last = c.key();
+            if (count++ % stride != 0L) continue;
+            if (size == MAX_SAMPLE)
+            {
+                // Keep every other key and sample half as often
+                for (int i = 0; i < size / 2; i++) keys[i] = keys[2 * i];
+                size /= 2;
+                stride *= 2;
+                if ((count - 1) % stride != 0L) continue;
+            }
+            if (size == keys.length) keys = Arrays.copyOf(keys, size * 2);
+            keys[size++] = last;
+        }
+
+        sample = keys;
+        sampleSize = size;
+        firstNew = count == 0L ? 0L : last + 1;
+        nextKey.set(firstNew);
+        if (distribution.equals("zipfian") || distribution.equals("latest")) zipf = new Zipfian(size, ZIPF_THETA);
+        return count;
+    }
+
+    public void run() throws IOException
+    {
+        IndexFileManager mgr = tree.getManager();
+        long reads0 = mgr.getBlockReads();
+        long writes0 = mgr.getBlockWrites();
+
+        List<Worker> workers = new ArrayList<>();
+        long start = System.nanoTime();
+        long deadline = start + durationMillis * 1_000_000L;
+        for (int i = 0; i < threads; i++)
+        {
+            Worker w = new Worker(i, deadline);
+            workers.add(w);
+            w.thread.start();
+        }
+
+        latencies = new LatencyHistogram();
+        IOException failure = null;
+        for (Worker w : workers)
+        {
+            try
+            {
+                w.thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for bench threads");
+            }
+            if (w.failure != null && failure == null) failure = w.failure;
+            latencies.merge(w.histogram);
+            reads += w.reads;
+            found += w.found;
+            inserts += w.inserts;
+        }
+        elapsedNanos = System.nanoTime() - start;
+        if (failure != null) throw failure;
+
+        blockReads = mgr.getBlockReads() - reads0;
+        blockWrites = mgr.getBlockWrites() - writes0;
+    }
+
+    public void report()
+    {
+        long ops = reads + inserts;
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("Operations: %d (%d searches, %d inserts) in %.2f s%n", ops, reads, inserts, seconds);
+        System.out.printf("Throughput: %.0f ops/s%n", ops / seconds);
+        System.out.printf("Searches found: %.1f%%%n", 100.0 * found / Math.max(1L, reads));
+        System.out.printf("Latency (us): p50 %.1f, p99 %.1f, p999 %.1f, max %.1f%n",
+                latencies.percentile(0.50) / 1e3, latencies.percentile(0.99) / 1e3,
+                latencies.percentile(0.999) / 1e3, latencies.max() / 1e3);
+        double perOp = Math.max(1L, ops);
+        System.out.printf("Block I/O per op: %.3f reads, %.3f writes%n", blockReads / perOp, blockWrites / perOp);
+    }
+
+    private class Worker implements Runnable
+    {
+        final Thread thread;
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final SplittableRandom random;
+        final long deadline;
+        long sequential;
+        long reads;
+        long found;
+        long inserts;
+        IOException failure;
+
+        Worker(int id, long deadline)
+        {
+            this.thread = new Thread(this, "bench-" + id);
+            this.random = new SplittableRandom(id * 0x9E3779B97F4A7C15L + 1);
+            this.deadline = deadline;
+            // Sequential readers start spread out over the keys
+            this.sequential = (long) sampleSize * id / threads;
+        }
+
+        public void run()
+        {
+            try
+            {
+                while (System.nanoTime() < deadline)
+                {
+                    boolean read = random.nextDouble() < readRatio;
+                    long t0 = System.nanoTime();
+                    boolean hit = false;
+                    if (read) hit = search(nextReadKey());
+                    else insert(nextKey.getAndIncrement());
+                    histogram.record(System.nanoTime() - t0);
+                    if (hit) found++;
+                    if (read) reads++;
+                    else inserts++;
+                }
+            }
+            catch (IOException e)
+            {
+                failure = e;
+            }
+        }
+
+        private long nextReadKey()
+        {
+            return keyAt(nextReadIndex());
+        }
+
+        // Index into the sample followed by the inserted keys
+        private long nextReadIndex()
+        {
+            long n = Math.max(1L, sampleSize + nextKey.get() - firstNew);
+            switch (distribution)
+            {
+                case "sequential":
+                    return sequential++ % n;
+                case "zipfian":
+                    // Scatter the popular keys over the whole key space
+                    return Long.remainderUnsigned(scramble(zipf.next(random)), n);
+                case "latest":
+                    // The most recently inserted keys are the most popular, then the largest old ones
+                    return Math.max(0L, n - 1 - zipf.next(random));
+                default:
+                    return random.nextLong(n);
+            }
+        }
+    }
+
+    private long keyAt(long i)
+    {
+        return i < sampleSize ? sample[(int) i] : firstNew + (i - sampleSize);
+    }
+
+    // True if the key was found
+    private boolean search(long key) throws IOException
+    {
+        lock.readLock().lock();
+        try
+        {
+            return tree.search(key) != -1L;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void insert(long key) throws IOException
+    {
+        lock.writeLock().lock();
+        try
+        {
+            tree.insert(key, key);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static long scramble(long x)
+    {
+        x *= 0xBF58476D1CE4E5B9L;
+        return x ^ (x >>> 31);
+    }
+
+    // Zipfian ranks 0 to n - 1, rank 0 the most popular (Gray et al., as in YCSB)
+    private static class Zipfian
+    {
+        private static final long ZETA_EXACT = 1L << 20;
+
+        private final long n;
+        private final double theta;
+        private final double alpha;
+        private final double zetan;
+        private final double eta;
+
+        Zipfian(long n, double theta)
+        {
+            this.n = Math.max(2L, n);
+            this.theta = theta;
+            this.alpha = 1.0 / (1.0 - theta);
+            this.zetan = zeta(this.n, theta);
+            double zeta2 = zeta(2L, theta);
+            this.eta = (1.0 - Math.pow(2.0 / this.n, 1.0 - theta)) / (1.0 - zeta2 / zetan);
+        }
+
+        // Exact over the first terms, then the integral of the rest, which is
+        // within a tiny fraction of the sum there and takes constant time
+        private static double zeta(long n, double theta)
+        {
+            long exact = Math.min(n, ZETA_EXACT);
+            double sum = 0.0;
+            for (long i = 1; i <= exact; i++) sum += 1.0 / Math.pow(i, theta);
+            if (n > exact)
+            {
+                sum += (Math.pow(n + 0.5, 1.0 - theta) - Math.pow(exact + 0.5, 1.0 - theta)) / (1.0 - theta);
+            }
+            return sum;
+        }
+
+        long next(SplittableRandom random)
+        {
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            if (uz < 1.0) return 0L;
+            if (uz < 1.0 + Math.pow(0.5, theta)) return 1L;
+            return (long) (n * Math.pow(eta * u - eta + 1.0, alpha));
+        }
+    }
+}
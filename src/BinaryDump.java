@@ -0,0 +1,284 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Compact binary export of the pairs in key order.
+//
+// Header: magic, version, flags, pair count (8 bytes each).
+// Then blocks of up to BLOCK_PAIRS pairs: pair count and compressed length
+// (4 bytes each), then the deflated payload. In the payload each key is a
+// varint of its difference from the previous key and each value is a zigzag
+// varint. A block with zero pairs ends the file.
+// The header is written last, by finish(), so an unfinished dump has no magic.
+public class BinaryDump
+{
+    public static final String MAGIC = "4348DUMP";
+    private static final long VERSION = 1L;
+    private static final int HEADER_BYTES = 32;
+    private static final int BLOCK_PAIRS = 4096;
+    // Worst case varint sizes for a full block
+    private static final int MAX_PAYLOAD = BLOCK_PAIRS * 20;
+
+    // Writes pairs, which must come in ascending key order. Call finish() once
+    // every pair is written; closing without it deletes the file.
+    public static class Writer implements AutoCloseable
+    {
+        private final Path path;
+        private final FileChannel out;
+        private final long flags;
+        private final ByteBuffer payload = ByteBuffer.allocate(MAX_PAYLOAD);
+        private final byte[] compressed = new byte[MAX_PAYLOAD + 64];
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private long position = HEADER_BYTES;
+        private int pairs;
+        private long total;
+        private long prevKey;
+        private boolean finished;
+
+        public Writer(String filename, long flags) throws IOException
+        {
+            this.path = Path.of(filename);
+            this.out = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            this.flags = flags;
+        }
+
+        public void write(long key, long value) throws IOException
+        {
+            if (total + pairs > 0 && key < prevKey) throw new IllegalArgumentException("Keys out of order");
+            // Unsigned difference, since key >= prevKey
+            putVarint(payload, pairs == 0 ? key : key - prevKey);
+            putVarint(payload, (value << 1) ^ (value >> 63));
+            prevKey = key;
+            if (++pairs == BLOCK_PAIRS) writeBlock();
+        }
+
+        private void writeBlock() throws IOException
+        {
+            deflater.reset();
+            deflater.setInput(payload.array(), 0, payload.position());
+            deflater.finish();
+            int len = deflater.deflate(compressed);
+            if (!deflater.finished()) throw new IOException("Dump block did not compress into buffer");
+
+            ByteBuffer head = ByteBuffer.allocate(8);
+            head.putInt(pairs).putInt(len).flip();
+            position = writeFully(out, head, position);
+            position = writeFully(out, ByteBuffer.wrap(compressed, 0, len), position);
+
+            total += pairs;
+            pairs = 0;
+            payload.clear();
+        }
+
+        // Write the last block, the end marker, and then the header with the final count
+        public void finish() throws IOException
+        {
+            if (pairs > 0) writeBlock();
+            ByteBuffer end = ByteBuffer.allocate(8);
+            position = writeFully(out, end, position);
+            out.force(false);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.put(MAGIC.getBytes(StandardCharsets.US_ASCII));
+            header.putLong(VERSION).putLong(flags).putLong(total).flip();
+            writeFully(out, header, 0L);
+            out.force(false);
+            finished = true;
+        }
+
+        // Close, deleting the file unless finish() succeeded
+        public void close() throws IOException
+        {
+            try
+            {
+                deflater.end();
+                out.close();
+            }
+            finally
+            {
+                if (!finished) Files.deleteIfExists(path);
+            }
+        }
+
+        public long count()
+        {
+            return total + pairs;
+        }
+    }
+
+    // Reads pairs back in key order, and can feed BulkLoader directly
+    public static class Reader implements BulkLoader.Source, AutoCloseable
+    {
+        private final FileChannel in;
+        private final long flags;
+        private final long count;
+        private final ByteBuffer payload = ByteBuffer.allocate(MAX_PAYLOAD);
+        private final Inflater inflater = new Inflater();
+        private long position = HEADER_BYTES;
+        private int left;
+        private boolean first;
+        private boolean done;
+        private long read;
+        private long key;
+        private long value;
+
+        public Reader(String filename) throws IOException
+        {
+            this.in = FileChannel.open(Path.of(filename), StandardOpenOption.READ);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(in, header, 0L);
+            header.flip();
+            byte[] magic = new byte[8];
+            header.get(magic);
+            if (!MAGIC.equals(new String(magic, StandardCharsets.US_ASCII)))
+            {
+                close();
+                throw new IOException("Invalid dump file: magic mismatch");
+            }
+            if (header.getLong() != VERSION)
+            {
+                close();
+                throw new IOException("Unsupported dump file version");
+            }
+            this.flags = header.getLong();
+            this.count = header.getLong();
+        }
+
+        public long getFlags()
+        {
+            return flags;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        public boolean next() throws IOException
+        {
+            if (left == 0 && !readBlock()) return false;
+            long delta = getVarint(payload);
+            key = first ? delta : key + delta;
+            first = false;
+            long zz = getVarint(payload);
+            value = (zz >>> 1) ^ -(zz & 1);
+            left--;
+            return true;
+        }
+
+        private boolean readBlock() throws IOException
+        {
+            if (done) return false;
+            ByteBuffer head = ByteBuffer.allocate(8);
+            position = readFully(in, head, position);
+            head.flip();
+            int pairs = head.getInt();
+            int len = head.getInt();
+            if (pairs == 0)
+            {
+                done = true;
+                if (read != count) throw new IOException("Dump is truncated: " + read + " of " + count + " pairs");
+                return false;
+            }
+            if (pairs < 0 || pairs > BLOCK_PAIRS || len < 0 || len > MAX_PAYLOAD + 64)
+            {
+                throw new IOException("Corrupt dump block");
+            }
+
+            ByteBuffer comp = ByteBuffer.allocate(len);
+            position = readFully(in, comp, position);
+            inflater.reset();
+            inflater.setInput(comp.array(), 0, len);
+            payload.clear();
+            try
+            {
+                int n = inflater.inflate(payload.array());
+                payload.limit(n);
+            }
+            catch (DataFormatException e)
+            {
+                throw new IOException("Corrupt dump block: " + e.getMessage());
+            }
+            left = pairs;
+            read += pairs;
+            first = true;
+            return true;
+        }
+
+        public long key()
+        {
+            return key;
+        }
+
+        public long value()
+        {
+            return value;
+        }
+
+        public void close() throws IOException
+        {
+            inflater.end();
+            in.close();
+        }
+    }
+
+    // Check the first 8 bytes of a file against a magic string
+    public static boolean hasMagic(String filename, String magic) throws IOException
+    {
+        try (FileChannel ch = FileChannel.open(Path.of(filename), StandardOpenOption.READ))
+        {
+            if (ch.size() < 8) return false;
+            ByteBuffer bb = ByteBuffer.allocate(8);
+            readFully(ch, bb, 0L);
+            return magic.equals(new String(bb.array(), StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static void putVarint(ByteBuffer bb, long v)
+    {
+        while ((v & ~0x7FL) != 0L)
+        {
+            bb.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        bb.put((byte) v);
+    }
+
+    private static long getVarint(ByteBuffer bb) throws IOException
+    {
+        long v = 0L;
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            if (!bb.hasRemaining()) throw new EOFException("Truncated dump block");
+            byte b = bb.get();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("Corrupt varint in dump block");
+    }
+
+    private static long writeFully(FileChannel ch, ByteBuffer bb, long pos) throws IOException
+    {
+        while (bb.hasRemaining()) pos += ch.write(bb, pos);
+        return pos;
+    }
+
+    private static long readFully(FileChannel ch, ByteBuffer bb, long pos) throws IOException
+    {
+        while (bb.hasRemaining())
+        {
+            int n = ch.read(bb, pos);
+            if (n < 0) throw new EOFException("Unexpected end of dump file");
+            pos += n;
+        }
+        return pos;
+    }
+}
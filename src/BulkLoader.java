@@ -0,0 +1,132 @@
+import java.io.IOException;
+
+// Builds a packed tree bottom-up from pairs that are already in key order.
+// Nodes are numbered level by level from the root, so every level, and in
+// particular all the leaves, sits in one contiguous run of blocks in key order.
+public class BulkLoader
+{
+    public static final double DEFAULT_FILL = 0.9;
+
+    // Pairs in ascending key order
+    public interface Source
+    {
+        boolean next() throws IOException;
+        long key();
+        long value();
+    }
+
+    private final IndexFileManager target;
+    private final Source src;
+    private final int fill;
+    private final int height;
+    // Most keys a subtree of each height can hold at this fill, index 0 unused
+    private final long[] capacity;
+    // Next block id to hand out at each depth, root is depth 0
+    private final long[] nextId;
+
+    private BulkLoader(IndexFileManager target, Source src, long count, double fillFactor)
+    {
+        this.target = target;
+        this.src = src;
+        this.fill = Math.max(BTreeNode.T - 1, Math.min(BTreeNode.MAX_KEYS,
+                (int) Math.round(fillFactor * BTreeNode.MAX_KEYS)));
+
+        // Smallest height that holds count keys
+        int h = 1;
+        long cap = fill;
+        while (cap < count)
+        {
+            h++;
+            cap = fill + (fill + 1) * cap;
+        }
+        this.height = h;
+        this.capacity = new long[h + 1];
+        capacity[1] = fill;
+        for (int i = 2; i <= h; i++) capacity[i] = fill + (fill + 1) * capacity[i - 1];
+        this.nextId = new long[h];
+    }
+
+    // Write count pairs from src into target, which must be a new empty index
+    public static void build(IndexFileManager target, Source src, long count, double fillFactor) throws IOException
+    {
+        if (target.getRootBlockId() != 0L) throw new IllegalStateException("Bulk load target is not empty");
+        if (count == 0L) return;
+
+        BulkLoader b = new BulkLoader(target, src, count, fillFactor);
+
+        // Count the nodes on each level to find where each level starts
+        long[] perDepth = new long[b.height];
+        b.countNodes(0, b.height, count, perDepth);
+        long total = 0L;
+        for (long n : perDepth) total += n;
+        long first = target.allocateBlocks(total);
+        for (int d = 0; d < b.height; d++)
+        {
+            b.nextId[d] = first;
+            first += perDepth[d];
+        }
+
+        long rootId = b.buildNode(0, b.height, count, 0L);
+        target.setRootBlockId(rootId);
+    }
+
+    // Number of children for a node of height h holding m keys in its subtree
+    private int children(int h, long m)
+    {
+        long c = (m + 1 + capacity[h - 1]) / (capacity[h - 1] + 1); // ceil((m + 1) / (cap + 1))
+        return (int) Math.max(2, c);
+    }
+
+    // Keys in the subtree of child j when m keys are split over c children
+    private static long childKeys(long m, int c, int j)
+    {
+        long below = m - (c - 1);
+        return below / c + (j < below % c ? 1 : 0);
+    }
+
+    private void countNodes(int depth, int h, long m, long[] perDepth)
+    {
+        perDepth[depth]++;
+        if (h == 1) return;
+        int c = children(h, m);
+        for (int j = 0; j < c; j++) countNodes(depth + 1, h - 1, childKeys(m, c, j), perDepth);
+    }
+
+    // Build the subtree in key order and return its block id.
+    // Children are written before their parent, so only one node per level is held.
+    private long buildNode(int depth, int h, long m, long parentId) throws IOException
+    {
+        long id = nextId[depth]++;
+        BTreeNode node = new BTreeNode(id, parentId, h == 1);
+        if (h == 1)
+        {
+            for (int i = 0; i < m; i++)
+            {
+                nextPair();
+                node.insertKey(i, src.key(), src.value());
+            }
+        }
+        else
+        {
+            int c = children(h, m);
+            for (int j = 0; j < c; j++)
+            {
+                long below = childKeys(m, c, j);
+                node.setChild(j, buildNode(depth + 1, h - 1, below, id));
+                node.setCount(j, below);
+                if (j < c - 1)
+                {
+                    nextPair();
+                    node.insertKey(j, src.key(), src.value());
+                }
+            }
+        }
+        target.writeBlockBytes(id, node.toBytes(target.hasCounts()));
+        return id;
+    }
+
+    private void nextPair() throws IOException
+    {
+        if (!src.next()) throw new IOException("Bulk load source ended early");
+    }
+}
@@ -0,0 +1,75 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Records the block ids NodeCache is asked for, and replays a recording
+// against a replacement policy to measure its hit ratio.
+// The file is one 8 byte id per access, negated for scan accesses.
+public class CacheTrace implements AutoCloseable
+{
+    private final DataOutputStream out;
+
+    public CacheTrace(String filename) throws IOException
+    {
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(Path.of(filename))));
+    }
+
+    public void record(long blockId, boolean scan) throws IOException
+    {
+        out.writeLong(scan ? -blockId : blockId);
+    }
+
+    public void close() throws IOException
+    {
+        out.close();
+    }
+
+    // Run the trace through a cache of capacity frames using policy.
+    // Returns the number of hits and the number of accesses.
+    public static long[] replay(String filename, int capacity, ReplacementPolicy policy) throws IOException
+    {
+        LongIntMap frameOf = new LongIntMap(capacity);
+        long[] frameBlock = new long[capacity];
+        int used = 0;
+        long hits = 0L;
+        long accesses = new File(filename).length() / 8;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Path.of(filename)))))
+        {
+            for (long i = 0; i < accesses; i++)
+            {
+                long id = in.readLong();
+                boolean scan = id < 0L;
+                if (scan) id = -id;
+
+                int f = frameOf.get(id);
+                if (f >= 0)
+                {
+                    hits++;
+                    policy.onHit(f, scan);
+                    continue;
+                }
+                // Same steps as NodeCache on a miss
+                if (used < capacity)
+                {
+                    f = used++;
+                }
+                else
+                {
+                    f = policy.victim();
+                    frameOf.remove(frameBlock[f]);
+                    policy.onEvict(f, frameBlock[f]);
+                }
+                frameBlock[f] = id;
+                frameOf.put(id, f);
+                policy.onAdmit(f, id, scan);
+            }
+        }
+        return new long[] { hits, accesses };
+    }
+}
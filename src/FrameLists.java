@@ -0,0 +1,96 @@
+import java.util.Arrays;
+
+// Doubly linked lists of cache frames threaded through int arrays, so the
+// policies keep their queues without any per-entry objects.
+// A frame is on at most one list at a time. The first frame of a list is the
+// oldest one and the last is the newest.
+public class FrameLists
+{
+    public static final int NONE = -1;
+
+    private final int[] prev;
+    private final int[] next;
+    // List each frame is on, or NONE
+    private final int[] owner;
+    private final int[] head;
+    private final int[] tail;
+    private final int[] size;
+
+    public FrameLists(int frames, int lists)
+    {
+        prev = new int[frames];
+        next = new int[frames];
+        owner = new int[frames];
+        head = new int[lists];
+        tail = new int[lists];
+        size = new int[lists];
+        clear();
+    }
+
+    public void addLast(int list, int f)
+    {
+        prev[f] = tail[list];
+        next[f] = NONE;
+        if (tail[list] != NONE) next[tail[list]] = f;
+        else head[list] = f;
+        tail[list] = f;
+        owner[f] = list;
+        size[list]++;
+    }
+
+    public void addFirst(int list, int f)
+    {
+        prev[f] = NONE;
+        next[f] = head[list];
+        if (head[list] != NONE) prev[head[list]] = f;
+        else tail[list] = f;
+        head[list] = f;
+        owner[f] = list;
+        size[list]++;
+    }
+
+    // Take f off whatever list it is on
+    public void remove(int f)
+    {
+        int list = owner[f];
+        if (list == NONE) return;
+        int p = prev[f], n = next[f];
+        if (p != NONE) next[p] = n;
+        else head[list] = n;
+        if (n != NONE) prev[n] = p;
+        else tail[list] = p;
+        owner[f] = NONE;
+        size[list]--;
+    }
+
+    // Move f to the newest end of list
+    public void moveToLast(int list, int f)
+    {
+        if (owner[f] == list && tail[list] == f) return;
+        remove(f);
+        addLast(list, f);
+    }
+
+    public int first(int list)
+    {
+        return head[list];
+    }
+
+    public int size(int list)
+    {
+        return size[list];
+    }
+
+    public int listOf(int f)
+    {
+        return owner[f];
+    }
+
+    public void clear()
+    {
+        Arrays.fill(owner, NONE);
+        Arrays.fill(head, NONE);
+        Arrays.fill(tail, NONE);
+        Arrays.fill(size, 0);
+    }
+}
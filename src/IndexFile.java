@@ -1,14 +1,27 @@
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.Scanner;
-import java.util.Deque;
-import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class IndexFile
 {
+    // Options given as --name or --name=value, anywhere on the command line
+    private static final Map<String, String> options = new HashMap<>();
+
+    // Inserts held in memory before a merge when --buffered has no size
+    private static final int DEFAULT_BUFFER_ENTRIES = 8192;
+
     public static void main(String[] args)
     {
+        args = parseOptions(args);
         if (args.length < 1)
         {
             System.err.println("Error: No command provided.");
@@ -19,7 +32,8 @@ public class IndexFile
 
         try
         {
-            // Commands: create, insert, search, load, print, extract
+            // Commands: create, insert, search, load, print, extract, range, compact,
+            // count, rank, select, dump, backup, restore, replay, bench, open
             switch (command)
             {
                 case "create":
@@ -40,6 +54,39 @@ public class IndexFile
                 case "extract":
                     cmdExtract(args);
                     break;
+                case "range":
+                    cmdRange(args);
+                    break;
+                case "compact":
+                    cmdCompact(args);
+                    break;
+                case "count":
+                    cmdCount(args);
+                    break;
+                case "rank":
+                    cmdRank(args);
+                    break;
+                case "select":
+                    cmdSelect(args);
+                    break;
+                case "dump":
+                    cmdDump(args);
+                    break;
+                case "backup":
+                    cmdBackup(args);
+                    break;
+                case "restore":
+                    cmdRestore(args);
+                    break;
+                case "replay":
+                    cmdReplay(args);
+                    break;
+                case "bench":
+                    cmdBench(args);
+                    break;
+                case "open":
+                    cmdOpen(args);
+                    break;
                 default:
                     System.err.println("Error: Unknown command '" + command + "'");
                     System.exit(1);
@@ -55,6 +102,131 @@ public class IndexFile
             System.err.println("Error: Invalid number format.");
             System.exit(1);
         }
+        catch (IllegalStateException e)
+        {
+            System.err.println("Error: " + e.getMessage() + ".");
+            System.exit(1);
+        }
+    }
+
+    // Pull options out of args and return the remaining arguments
+    private static String[] parseOptions(String[] args)
+    {
+        List<String> rest = new ArrayList<>();
+        for (String a : args)
+        {
+            if (a.startsWith("--"))
+            {
+                int eq = a.indexOf('=');
+                if (eq < 0) options.put(a.substring(2), "");
+                else options.put(a.substring(2, eq), a.substring(eq + 1));
+            }
+            else
+            {
+                rest.add(a);
+            }
+        }
+        return rest.toArray(new String[0]);
+    }
+
+    // Cache size from --cache
+    private static int cacheCapacity()
+    {
+        int capacity = IndexFileManager.DEFAULT_CACHE_CAPACITY;
+        if (options.containsKey("cache")) capacity = Integer.parseInt(options.get("cache"));
+        if (capacity < 1)
+        {
+            System.err.println("Error: --cache must be at least 1.");
+            System.exit(1);
+        }
+        return capacity;
+    }
+
+    // Replacement policy from --policy
+    private static String cachePolicy()
+    {
+        String policy = options.getOrDefault("policy", ReplacementPolicy.NAMES[0]);
+        if (!Arrays.asList(ReplacementPolicy.NAMES).contains(policy))
+        {
+            System.err.println("Error: --policy must be one of " + String.join(", ", ReplacementPolicy.NAMES) + ".");
+            System.exit(1);
+        }
+        return policy;
+    }
+
+    // Start the background flusher if --flush-ratio or --flush-age was given
+    private static void startFlusher(IndexFileManager mgr)
+    {
+        if (options.containsKey("flush-ratio") || options.containsKey("flush-age"))
+        {
+            double ratio = PageFlusher.DEFAULT_DIRTY_RATIO;
+            long age = PageFlusher.DEFAULT_MAX_AGE_MILLIS;
+            if (options.containsKey("flush-ratio")) ratio = Double.parseDouble(options.get("flush-ratio"));
+            if (options.containsKey("flush-age")) age = Long.parseLong(options.get("flush-age"));
+            mgr.startFlusher(ratio, age, PageFlusher.DEFAULT_INTERVAL_MILLIS);
+        }
+    }
+
+    // Open an index file using the cache, I/O, flusher and trace options
+    private static IndexFileManager openManager(String filename) throws IOException
+    {
+        return openManager(filename, false);
+    }
+
+    // Read-only opens the file without write access and starts no flusher
+    private static IndexFileManager openManager(String filename, boolean readOnly) throws IOException
+    {
+        boolean direct = options.containsKey("direct");
+        IndexFileManager mgr = new IndexFileManager(filename, cacheCapacity(), direct, cachePolicy(), readOnly);
+        if (direct) warnIfBuffered(mgr);
+        if (options.containsKey("trace")) mgr.startTrace(options.get("trace"));
+        if (!readOnly) startFlusher(mgr);
+        return mgr;
+    }
+
+    private static void warnIfBuffered(IndexFileManager mgr)
+    {
+        if (!mgr.isDirect()) System.err.println("Note: O_DIRECT is not supported here, using buffered I/O.");
+    }
+
+    // Open an index file as a BTree, with the write buffer if --buffered was given
+    private static BTree openTree(String filename) throws IOException
+    {
+        BTree tree = new BTree(openManager(filename));
+        attachLog(tree, filename);
+        return tree;
+    }
+
+    // Turn on the write buffer for --buffered, and replay a log left by a crash
+    private static void attachLog(BTree tree, String filename) throws IOException
+    {
+        File log = new File(filename + ".wal");
+        if (options.containsKey("buffered"))
+        {
+            int threshold = DEFAULT_BUFFER_ENTRIES;
+            String n = options.get("buffered");
+            if (!n.isEmpty()) threshold = Integer.parseInt(n);
+            tree.enableWriteBuffer(log.getPath(), Math.max(1, threshold));
+        }
+        else if (log.exists())
+        {
+            tree.enableWriteBuffer(log.getPath(), DEFAULT_BUFFER_ENTRIES);
+            tree.disableWriteBuffer();
+        }
+    }
+
+    // Open a shard manifest using the cache, flusher and buffer options
+    private static ShardedIndex openSharded(String filename) throws IOException
+    {
+        boolean direct = options.containsKey("direct");
+        ShardedIndex index = ShardedIndex.open(filename, cacheCapacity(), direct, cachePolicy());
+        if (direct && index.shardCount() > 0) warnIfBuffered(index.getManager(0));
+        for (int i = 0; i < index.shardCount(); i++)
+        {
+            startFlusher(index.getManager(i));
+            attachLog(index.getTree(i), index.getShardFile(i));
+        }
+        return index;
     }
 
     // Create
@@ -76,7 +248,32 @@ public class IndexFile
             System.exit(1);
         }
 
+        if (options.containsKey("shards"))
+        {
+            // Sharded index: a manifest plus one index file per shard
+            int shards = Integer.parseInt(options.get("shards"));
+            long[] bounds = null;
+            if (options.containsKey("range"))
+            {
+                String[] parts = options.get("range").split(",");
+                bounds = new long[parts.length];
+                for (int i = 0; i < parts.length; i++) bounds[i] = Long.parseLong(parts[i].trim());
+            }
+            try
+            {
+                ShardedIndex.create(filename, shards, bounds, options.containsKey("counts"));
+            }
+            catch (IllegalArgumentException e)
+            {
+                System.err.println("Error: " + e.getMessage());
+                System.exit(1);
+            }
+            System.out.println("Sharded index created: " + filename + " (" + shards + " shards)");
+            return;
+        }
+
         IndexFileManager mgr = new IndexFileManager(filename);
+        if (options.containsKey("counts")) mgr.enableCounts();
         mgr.flushAndClose();
         System.out.println("Index file created: " + filename);
     }
@@ -101,9 +298,18 @@ public class IndexFile
             System.exit(1);
         }
 
-        IndexFileManager mgr = new IndexFileManager(filename);
-        BTree tree = new BTree(mgr);
+        if (ShardedIndex.isManifest(f))
+        {
+            ShardedIndex index = openSharded(filename);
+            index.insert(key, value);
+            index.close();
+            System.out.println("Inserted key=" + key + ", value=" + value);
+            return;
+        }
+
+        BTree tree = openTree(filename);
         tree.insert(key, value);
+        tree.commit();
         tree.close();
         System.out.println("Inserted key=" + key + ", value=" + value);
     }
@@ -128,12 +334,21 @@ public class IndexFile
             System.exit(1);
         }
 
-        IndexFileManager mgr = new IndexFileManager(filename);
-        BTree tree = new BTree(mgr);
-        long value = tree.search(key);
+        long value;
+        if (ShardedIndex.isManifest(f))
+        {
+            ShardedIndex index = openSharded(filename);
+            value = index.search(key);
+            index.close();
+        }
+        else
+        {
+            BTree tree = openTree(filename);
+            value = tree.search(key);
+            tree.close();
+        }
         if (value == -1L) System.out.println("Key " + key + " not found.");
         else System.out.println("Found: " + key + " -> " + value);
-        tree.close();
     }
 
     // Load CSV File
@@ -161,8 +376,22 @@ public class IndexFile
             System.exit(1);
         }
 
-        IndexFileManager mgr = new IndexFileManager(indexFilename);
-        BTree tree = new BTree(mgr);
+        if (ShardedIndex.isManifest(idx))
+        {
+            ShardedIndex index = openSharded(indexFilename);
+            try
+            {
+                index.loadCSV(csv);
+            }
+            finally
+            {
+                index.close();
+            }
+            System.out.println("CSV file loaded into index: " + csvFilename);
+            return;
+        }
+
+        BTree tree = openTree(indexFilename);
         try (Scanner sc = new Scanner(csv))
         {
             while (sc.hasNextLine())
@@ -180,6 +409,8 @@ public class IndexFile
                 tree.insert(k, v);
             }
         }
+        // The whole file is in the log before the merge starts
+        tree.commit();
         tree.close();
         System.out.println("CSV file loaded into index: " + csvFilename);
     }
@@ -202,9 +433,26 @@ public class IndexFile
             System.exit(1);
         }
 
-        IndexFileManager mgr = new IndexFileManager(filename);
+        if (ShardedIndex.isManifest(f))
+        {
+            ShardedIndex index = openSharded(filename);
+            try
+            {
+                index.scan(Long.MIN_VALUE, Long.MAX_VALUE, (k, v) -> System.out.println(k + "," + v));
+            }
+            finally
+            {
+                index.close();
+            }
+            return;
+        }
+
+        BTree tree = openTree(filename);
         try
         {
+            // Scans read the tree, so merge any buffered inserts first
+            tree.mergeBuffer();
+            IndexFileManager mgr = tree.getManager();
             long rootId = mgr.getRootBlockId();
             if (rootId != 0L)
             {
@@ -213,59 +461,21 @@ public class IndexFile
         }
         finally
         {
-            mgr.flushAndClose();
+            tree.close();
         }
     }
 
     private static void diskInOrderPrint(IndexFileManager mgr, long rootId) throws IOException
     {
-        class Frame
+        // Read a snapshot, so writers would not have to wait for the scan
+        try (Snapshot snap = mgr.openSnapshot())
         {
-            long blockId; int idx; Frame(long b, int i)
+            BTreeCursor c = new BTreeCursor(snap);
+            while (c.next())
             {
-                blockId = b; idx = i;
+                System.out.println(c.key() + "," + c.value());
             }
         }
-
-        Deque<Frame> stack = new ArrayDeque<>();
-        stack.addLast(new Frame(rootId, 0));
-
-        while (!stack.isEmpty())
-        {
-            Frame top = stack.getLast();
-            // Can load up to 3
-            BTreeNode node = mgr.readNode(top.blockId);
-            int nkeys = node.getNumKeys();
-
-            if (top.idx < nkeys)
-            {
-                long childId = node.getChild(top.idx);
-                if (childId != 0L)
-                {
-                    // push child
-                    stack.addLast(new Frame(childId, 0));
-                }
-                else
-                {
-                    // if there is no child, print
-                    System.out.println(node.getKey(top.idx) + "," + node.getValue(top.idx));
-                    top.idx++;
-                }
-            }
-            else
-            {
-                long rightChild = node.getChild(nkeys);
-                if (rightChild != 0L)
-                {
-                    stack.addLast(new Frame(rightChild, 0));
-                }
-                else
-                {
-                    stack.removeLast();
-                }
-            }
-            node = null;
-        }
     }
 
     // Extract
@@ -292,62 +502,701 @@ public class IndexFile
             System.exit(1);
         }
 
-        IndexFileManager mgr = new IndexFileManager(indexFilename);
+        if (ShardedIndex.isManifest(idx))
+        {
+            ShardedIndex index = openSharded(indexFilename);
+            try (PrintWriter pw = new PrintWriter(csv))
+            {
+                index.scan(Long.MIN_VALUE, Long.MAX_VALUE, (k, v) -> pw.println(k + "," + v));
+            }
+            finally
+            {
+                index.close();
+            }
+            System.out.println("BTree extracted to CSV: " + csvFilename);
+            return;
+        }
+
+        BTree tree = openTree(indexFilename);
         try (PrintWriter pw = new PrintWriter(csv))
         {
+            tree.mergeBuffer();
+            IndexFileManager mgr = tree.getManager();
             long rootId = mgr.getRootBlockId();
             if (rootId != 0L) diskInOrderWriteCSV(mgr, rootId, pw);
         }
         finally
         {
-            mgr.flushAndClose();
+            tree.close();
         }
         System.out.println("BTree extracted to CSV: " + csvFilename);
     }
 
-    private static void diskInOrderWriteCSV(IndexFileManager mgr, long rootId, PrintWriter pw) throws IOException {
-        class Frame
-        { long blockId; int idx; Frame(long b, int i)
+    private static void diskInOrderWriteCSV(IndexFileManager mgr, long rootId, PrintWriter pw) throws IOException
+    {
+        try (Snapshot snap = mgr.openSnapshot())
+        {
+            BTreeCursor c = new BTreeCursor(snap);
+            while (c.next())
+            {
+                pw.println(c.key() + "," + c.value());
+            }
+        }
+    }
+
+    // Range
+    private static void cmdRange(String[] args) throws IOException
+    {
+        if (args.length != 4)
+        {
+            System.err.println("Usage: range <indexfile> <lo> <hi>");
+            System.exit(1);
+        }
+        String filename = args[1];
+        long lo = Long.parseLong(args[2]);
+        long hi = Long.parseLong(args[3]);
+
+        File f = new File(filename);
+        if (!f.exists())
+        {
+            System.err.println("Error: Index file does not exist.");
+            System.exit(1);
+        }
+
+        if (ShardedIndex.isManifest(f))
+        {
+            ShardedIndex index = openSharded(filename);
+            try
+            {
+                index.scan(lo, hi, (k, v) -> System.out.println(k + "," + v));
+            }
+            finally
+            {
+                index.close();
+            }
+            return;
+        }
+
+        BTree tree = openTree(filename);
+        try
+        {
+            tree.mergeBuffer();
+            try (Snapshot snap = tree.getManager().openSnapshot())
+            {
+                BTreeCursor c = new BTreeCursor(snap);
+                c.seek(lo);
+                while (c.next() && c.key() <= hi)
+                {
+                    System.out.println(c.key() + "," + c.value());
+                }
+            }
+        }
+        finally
+        {
+            tree.close();
+        }
+    }
+
+    // Compact
+    private static void cmdCompact(String[] args) throws IOException
+    {
+        if (args.length != 2)
+        {
+            System.err.println("Usage: compact <indexfile> [--fill=F]");
+            System.exit(1);
+        }
+        String filename = args[1];
+        File f = new File(filename);
+        if (!f.exists())
+        {
+            System.err.println("Error: Index file does not exist.");
+            System.exit(1);
+        }
+
+        double fill = BulkLoader.DEFAULT_FILL;
+        if (options.containsKey("fill")) fill = Double.parseDouble(options.get("fill"));
+        if (fill < 0.5 || fill > 1.0)
+        {
+            System.err.println("Error: --fill must be between 0.5 and 1.0.");
+            System.exit(1);
+        }
+
+        if (ShardedIndex.isManifest(f))
+        {
+            // Recover and merge any logs, then compact each shard on its own
+            ShardedIndex index = openSharded(filename);
+            String[] shards = new String[index.shardCount()];
+            for (int i = 0; i < shards.length; i++) shards[i] = index.getShardFile(i);
+            index.close();
+            for (String shard : shards) compactFile(shard, fill);
+            return;
+        }
+        compactFile(filename, fill);
+    }
+
+    // Rewrite one index file packed and in key order, then swap it in
+    private static void compactFile(String filename, double fill) throws IOException
+    {
+        long before = new File(filename).length() / IndexFileManager.BLOCK_SIZE;
+        File tmp = new File(filename + ".compact");
+        Files.deleteIfExists(tmp.toPath());
+
+        BTree tree = openTree(filename);
+        try
+        {
+            tree.mergeBuffer();
+            IndexFileManager mgr = tree.getManager();
+
+            long count = 0L;
+            BTreeCursor counter = new BTreeCursor(mgr);
+            while (counter.next()) count++;
+
+            IndexFileManager out = new IndexFileManager(tmp.getPath());
+            try
+            {
+                // --counts adds subtree counts to an index that lacks them
+                if (mgr.hasCounts() || options.containsKey("counts")) out.enableCounts();
+                BulkLoader.build(out, new BTreeCursor(mgr), count, fill);
+                out.checkpoint();
+            }
+            finally
+            {
+                out.flushAndClose();
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+        finally
+        {
+            tree.close();
+        }
+
+        Files.move(tmp.toPath(), Path.of(filename), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        long after = new File(filename).length() / IndexFileManager.BLOCK_SIZE;
+        System.out.println("Compacted " + filename + ": " + before + " blocks -> " + after + " blocks");
+    }
+
+    // Count
+    private static void cmdCount(String[] args) throws IOException
+    {
+        if (args.length != 4)
+        {
+            System.err.println("Usage: count <indexfile> <lo> <hi>");
+            System.exit(1);
+        }
+        String filename = args[1];
+        long lo = Long.parseLong(args[2]);
+        long hi = Long.parseLong(args[3]);
+        File f = requireIndex(filename);
+
+        long n;
+        if (ShardedIndex.isManifest(f))
+        {
+            ShardedIndex index = openSharded(filename);
+            try
+            {
+                n = index.count(lo, hi);
+            }
+            finally
+            {
+                index.close();
+            }
+        }
+        else
+        {
+            BTree tree = openTree(filename);
+            try
+            {
+                n = tree.count(lo, hi);
+            }
+            finally
+            {
+                tree.close();
+            }
+        }
+        System.out.println("Keys in [" + lo + ", " + hi + "]: " + n);
+    }
+
+    // Rank
+    private static void cmdRank(String[] args) throws IOException
+    {
+        if (args.length != 3)
+        {
+            System.err.println("Usage: rank <indexfile> <key>");
+            System.exit(1);
+        }
+        String filename = args[1];
+        long key = Long.parseLong(args[2]);
+        File f = requireIndex(filename);
+
+        long rank;
+        if (ShardedIndex.isManifest(f))
+        {
+            ShardedIndex index = openSharded(filename);
+            try
+            {
+                rank = index.rank(key, false);
+            }
+            finally
             {
-                blockId = b; idx = i;
+                index.close();
             }
         }
+        else
+        {
+            BTree tree = openTree(filename);
+            try
+            {
+                rank = tree.rank(key, false);
+            }
+            finally
+            {
+                tree.close();
+            }
+        }
+        System.out.println("Keys less than " + key + ": " + rank);
+    }
+
+    // Select
+    private static void cmdSelect(String[] args) throws IOException
+    {
+        if (args.length != 3)
+        {
+            System.err.println("Usage: select <indexfile> <k>");
+            System.exit(1);
+        }
+        String filename = args[1];
+        long k = Long.parseLong(args[2]);
+        File f = requireIndex(filename);
 
-        Deque<Frame> stack = new ArrayDeque<>();
-        stack.addLast(new Frame(rootId, 0));
+        long[] pair;
+        if (ShardedIndex.isManifest(f))
+        {
+            ShardedIndex index = openSharded(filename);
+            try
+            {
+                pair = index.select(k);
+            }
+            finally
+            {
+                index.close();
+            }
+        }
+        else
+        {
+            BTree tree = openTree(filename);
+            try
+            {
+                pair = tree.select(k);
+            }
+            finally
+            {
+                tree.close();
+            }
+        }
+        if (pair == null) System.out.println("No key at position " + k + ".");
+        else System.out.println("Key " + k + ": " + pair[0] + " -> " + pair[1]);
+    }
 
-        while (!stack.isEmpty())
+    // Dump
+    private static void cmdDump(String[] args) throws IOException
+    {
+        if (args.length != 3)
+        {
+            System.err.println("Usage: dump <indexfile> <dumpfile>");
+            System.exit(1);
+        }
+        String filename = args[1];
+        String dumpFilename = args[2];
+        File f = requireIndex(filename);
+        if (new File(dumpFilename).exists())
         {
-            Frame top = stack.getLast();
-            BTreeNode node = mgr.readNode(top.blockId);
-            int nkeys = node.getNumKeys();
+            System.err.println("Error: Dump output file already exists.");
+            System.exit(1);
+        }
 
-            if (top.idx < nkeys)
+        long count;
+        if (ShardedIndex.isManifest(f))
+        {
+            ShardedIndex index = openSharded(filename);
+            long flags = index.getManager(0).hasCounts() ? IndexFileManager.FLAG_COUNTS : 0L;
+            try (BinaryDump.Writer w = new BinaryDump.Writer(dumpFilename, flags))
             {
-                long childId = node.getChild(top.idx);
-                if (childId != 0L)
+                index.scan(Long.MIN_VALUE, Long.MAX_VALUE, w::write);
+                w.finish();
+                count = w.count();
+            }
+            finally
+            {
+                index.close();
+            }
+        }
+        else
+        {
+            BTree tree = openTree(filename);
+            try
+            {
+                tree.mergeBuffer();
+                IndexFileManager mgr = tree.getManager();
+                long flags = mgr.hasCounts() ? IndexFileManager.FLAG_COUNTS : 0L;
+                try (Snapshot snap = mgr.openSnapshot();
+                     BinaryDump.Writer w = new BinaryDump.Writer(dumpFilename, flags))
                 {
-                    stack.addLast(new Frame(childId, 0));
+                    BTreeCursor c = new BTreeCursor(snap);
+                    while (c.next()) w.write(c.key(), c.value());
+                    w.finish();
+                    count = w.count();
                 }
-                else
+            }
+            finally
+            {
+                tree.close();
+            }
+        }
+        System.out.println("Dumped " + count + " keys to " + dumpFilename);
+    }
+
+    // Backup
+    private static void cmdBackup(String[] args) throws IOException
+    {
+        if (args.length != 3)
+        {
+            System.err.println("Usage: backup <indexfile> <backupfile>");
+            System.exit(1);
+        }
+        String filename = args[1];
+        String backupFilename = args[2];
+        File f = requireIndex(filename);
+        if (new File(backupFilename).exists())
+        {
+            System.err.println("Error: Backup output file already exists.");
+            System.exit(1);
+        }
+        if (ShardedIndex.isManifest(f))
+        {
+            System.err.println("Error: Backup copies one index file, use dump for a sharded index.");
+            System.exit(1);
+        }
+
+        BTree tree = openTree(filename);
+        try
+        {
+            tree.mergeBuffer();
+            tree.getManager().backupTo(backupFilename);
+        }
+        finally
+        {
+            tree.close();
+        }
+        System.out.println("Index backed up to: " + backupFilename);
+    }
+
+    // Restore
+    private static void cmdRestore(String[] args) throws IOException
+    {
+        if (args.length != 3)
+        {
+            System.err.println("Usage: restore <backupfile> <indexfile>");
+            System.exit(1);
+        }
+        String backupFilename = args[1];
+        String filename = args[2];
+        if (!new File(backupFilename).exists())
+        {
+            System.err.println("Error: Backup file does not exist.");
+            System.exit(1);
+        }
+        if (new File(filename).exists())
+        {
+            System.err.println("Error: File already exists.");
+            System.exit(1);
+        }
+
+        try
+        {
+            if (BinaryDump.hasMagic(backupFilename, BinaryDump.MAGIC))
+            {
+                // Sorted pairs, so build the tree bottom-up
+                double fill = BulkLoader.DEFAULT_FILL;
+                if (options.containsKey("fill")) fill = Double.parseDouble(options.get("fill"));
+                try (BinaryDump.Reader r = new BinaryDump.Reader(backupFilename))
                 {
-                    pw.println(node.getKey(top.idx) + "," + node.getValue(top.idx));
-                    top.idx++;
+                    IndexFileManager mgr = new IndexFileManager(filename);
+                    try
+                    {
+                        boolean counts = (r.getFlags() & IndexFileManager.FLAG_COUNTS) != 0L;
+                        if (counts || options.containsKey("counts")) mgr.enableCounts();
+                        BulkLoader.build(mgr, r, r.getCount(), fill);
+                        // Read on to the end marker, which checks the count
+                        if (r.next()) throw new IOException("Dump has more pairs than its header says");
+                        mgr.checkpoint();
+                    }
+                    finally
+                    {
+                        mgr.flushAndClose();
+                    }
+                    System.out.println("Restored " + r.getCount() + " keys into: " + filename);
                 }
             }
             else
             {
-                long rightChild = node.getChild(nkeys);
-                if (rightChild != 0L)
+                // Page backup, copied as is and checked by opening it
+                IndexFileManager.restoreFrom(backupFilename, filename);
+                new IndexFileManager(filename).flushAndClose();
+                System.out.println("Index restored to: " + filename);
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            Files.deleteIfExists(Path.of(filename));
+            throw e;
+        }
+    }
+
+    // Replay
+    private static void cmdReplay(String[] args) throws IOException
+    {
+        if (args.length != 2)
+        {
+            System.err.println("Usage: replay <tracefile> [--cache=N]");
+            System.exit(1);
+        }
+        String filename = args[1];
+        if (!new File(filename).exists())
+        {
+            System.err.println("Error: Trace file does not exist.");
+            System.exit(1);
+        }
+
+        int capacity = cacheCapacity();
+        System.out.println("Cache of " + capacity + " pages:");
+        for (String name : ReplacementPolicy.NAMES)
+        {
+            long[] r = CacheTrace.replay(filename, capacity, ReplacementPolicy.create(name, capacity));
+            double ratio = r[1] == 0L ? 0.0 : (double) r[0] / r[1];
+            System.out.printf("%-8s hit ratio %.4f (%d of %d)%n", name, ratio, r[0], r[1]);
+        }
+    }
+
+    // Bench
+    private static void cmdBench(String[] args) throws IOException
+    {
+        if (args.length != 2)
+        {
+            System.err.println("Usage: bench <indexfile> [--reads=R] [--dist=D] [--threads=N] [--duration=S] [--records=N] [--in-place]");
+            System.exit(1);
+        }
+        String filename = args[1];
+        File f = requireIndex(filename);
+        if (ShardedIndex.isManifest(f))
+        {
+            System.err.println("Error: bench needs a single index file, not a shard manifest.");
+            System.exit(1);
+        }
+
+        double reads = Double.parseDouble(options.getOrDefault("reads", "0.95"));
+        String dist = options.getOrDefault("dist", "zipfian");
+        int threads = Integer.parseInt(options.getOrDefault("threads", "1"));
+        double duration = Double.parseDouble(options.getOrDefault("duration", "10"));
+        long records = Long.parseLong(options.getOrDefault("records", "100000"));
+        if (reads < 0.0 || reads > 1.0)
+        {
+            System.err.println("Error: --reads must be between 0 and 1.");
+            System.exit(1);
+        }
+        if (!Arrays.asList(Bench.DISTRIBUTIONS).contains(dist))
+        {
+            System.err.println("Error: --dist must be one of " + String.join(", ", Bench.DISTRIBUTIONS) + ".");
+            System.exit(1);
+        }
+        if (threads < 1 || duration <= 0.0 || records < 0L)
+        {
+            System.err.println("Error: --threads and --duration must be positive and --records not negative.");
+            System.exit(1);
+        }
+
+        // Run on a copy unless --in-place, so the inserted keys do not stay in the index
+        boolean inPlace = options.containsKey("in-place");
+        String target = inPlace ? filename : filename + ".bench";
+        if (!inPlace) copyIndex(filename, target);
+
+        BTree tree = null;
+        try
+        {
+            tree = openTree(target);
+            tree.mergeBuffer();
+            IndexFileManager mgr = tree.getManager();
+            if (mgr.getRootBlockId() == 0L)
+            {
+                // Keys 0 to records - 1, value equal to key
+                long count = records;
+                BulkLoader.build(mgr, new BulkLoader.Source()
                 {
-                    stack.addLast(new Frame(rightChild, 0));
+                    private long next = -1L;
+
+                    public boolean next()
+                    {
+                        return ++next < count;
+                    }
+
+                    public long key()
+                    {
+                        return next;
+                    }
+
+                    public long value()
+                    {
+                        return next;
+                    }
+                }, records, BulkLoader.DEFAULT_FILL);
+                mgr.checkpoint();
+                System.out.println("Loaded " + records + " records");
+            }
+
+            // Search for the keys already there, and insert past the largest
+            Bench bench = new Bench(tree, reads, dist, threads, (long) (duration * 1000));
+            records = bench.sampleKeys();
+            System.out.printf("Workload: %.0f%% searches, %s keys over %d records, %d threads, %.1f s, cache %d pages%n",
+                    reads * 100, dist, records, threads, duration, cacheCapacity());
+            bench.run();
+            bench.report();
+        }
+        finally
+        {
+            try
+            {
+                if (tree != null) tree.close();
+            }
+            finally
+            {
+                if (!inPlace) deleteIndex(target);
+            }
+        }
+    }
+
+    // Copy an index file and its write buffer log, if any
+    private static void copyIndex(String source, String target) throws IOException
+    {
+        Files.copy(Path.of(source), Path.of(target), StandardCopyOption.REPLACE_EXISTING);
+        Path log = Path.of(source + ".wal");
+        if (Files.exists(log)) Files.copy(log, Path.of(target + ".wal"), StandardCopyOption.REPLACE_EXISTING);
+        else Files.deleteIfExists(Path.of(target + ".wal"));
+    }
+
+    // Delete an index file with its log and snapshot files
+    private static void deleteIndex(String filename) throws IOException
+    {
+        Files.deleteIfExists(Path.of(filename));
+        Files.deleteIfExists(Path.of(filename + ".wal"));
+        Files.deleteIfExists(Path.of(filename + ".snap"));
+    }
+
+    // Open: answer search and range commands from standard input
+    private static void cmdOpen(String[] args) throws IOException
+    {
+        if (args.length != 2 || !options.containsKey("readonly"))
+        {
+            System.err.println("Usage: open <indexfile> --readonly [--in-memory]");
+            System.exit(1);
+        }
+        String filename = args[1];
+        File f = requireIndex(filename);
+        if (ShardedIndex.isManifest(f))
+        {
+            System.err.println("Error: open needs a single index file, not a shard manifest.");
+            System.exit(1);
+        }
+        // Replaying the log would write to the index
+        if (new File(filename + ".wal").exists())
+        {
+            System.err.println("Error: Index has unmerged buffered inserts, run a write command on it first.");
+            System.exit(1);
+        }
+
+        IndexFileManager mgr = openManager(filename, true);
+        StaticIndex memory = null;
+        BTree tree = null;
+        try
+        {
+            if (options.containsKey("in-memory"))
+            {
+                long start = System.nanoTime();
+                memory = StaticIndex.load(mgr);
+                System.out.printf("Loaded %d keys into memory in %d ms%n", memory.size(),
+                        (System.nanoTime() - start) / 1_000_000L);
+                // Everything is in the arrays now
+                mgr.flushAndClose();
+                mgr = null;
+            }
+            else
+            {
+                tree = new BTree(mgr);
+            }
+
+            Scanner in = new Scanner(System.in);
+            while (in.hasNextLine())
+            {
+                String[] parts = in.nextLine().trim().split("\\s+");
+                String cmd = parts[0].toLowerCase();
+                if (cmd.isEmpty()) continue;
+                if (cmd.equals("quit") || cmd.equals("exit")) break;
+                try
+                {
+                    if (cmd.equals("search") && parts.length == 2)
+                    {
+                        long key = Long.parseLong(parts[1]);
+                        long value = memory != null ? memory.search(key) : tree.search(key);
+                        if (value == -1L) System.out.println("Key " + key + " not found.");
+                        else System.out.println("Found: " + key + " -> " + value);
+                    }
+                    else if (cmd.equals("range") && parts.length == 3)
+                    {
+                        long lo = Long.parseLong(parts[1]);
+                        long hi = Long.parseLong(parts[2]);
+                        if (memory != null)
+                        {
+                            for (int i = memory.lowerBound(lo); i < memory.size() && memory.getKey(i) <= hi; i++)
+                            {
+                                System.out.println(memory.getKey(i) + "," + memory.getValue(i));
+                            }
+                        }
+                        else
+                        {
+                            BTreeCursor c = new BTreeCursor(mgr);
+                            c.seek(lo);
+                            while (c.next() && c.key() <= hi) System.out.println(c.key() + "," + c.value());
+                        }
+                    }
+                    else
+                    {
+                        System.err.println("Error: Expected search <key>, range <lo> <hi> or quit.");
+                    }
                 }
-                else
+                catch (NumberFormatException e)
                 {
-                    stack.removeLast();
+                    System.err.println("Error: Invalid number format.");
                 }
+                System.out.flush();
             }
-            node = null;
         }
+        finally
+        {
+            if (mgr != null) mgr.flushAndClose();
+        }
+    }
+
+    // Exit unless the index file exists
+    private static File requireIndex(String filename)
+    {
+        File f = new File(filename);
+        if (!f.exists())
+        {
+            System.err.println("Error: Index file does not exist.");
+            System.exit(1);
+        }
+        return f;
     }
-}
\ No newline at end of file
+}
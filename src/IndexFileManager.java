@@ -1,29 +1,139 @@
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import com.sun.nio.file.ExtendedOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.io.File;
 
-public class IndexFileManager
+public class IndexFileManager implements NodeReader
 {
     public static final int BLOCK_SIZE = 512;
+    public static final int DEFAULT_CACHE_CAPACITY = 3;
     private static final String MAGIC = "4348PRJ3"; // exactly 8 ASCII bytes
-    private final RandomAccessFile raf;
+
+    // Header flag: nodes store a key count for each child
+    public static final long FLAG_COUNTS = 1L;
+    // Header flag: an update is in progress, see beginUpdate
+    private static final long FLAG_UPDATING = 2L;
+    // Undo log record: block id, then the page as it was
+    private static final int UNDO_RECORD_BYTES = 8 + BLOCK_SIZE;
+
+    // Positional reads and writes, so the flusher thread can share the file
+    private final FileChannel channel;
+    private final Path path;
+    // Opened for reading only, every change to the file is refused
+    private final boolean readOnly;
+
+    // O_DIRECT mode: all file I/O goes through aligned buffers in units of
+    // ioUnit bytes, and page writes inside a unit are read-modify-write
+    private final boolean direct;
+    private final int ioUnit;
+    private final AlignedBufferPool pool;
+    private final Object directLock = new Object();
     private final NodeCache cache;
+    private PageFlusher flusher;
+    // Block reads and writes that reached the file, for benchmarks
+    private final LongAdder blockReads = new LongAdder();
+    private final LongAdder blockWrites = new LongAdder();
     private long rootBlockId;
     private long nextBlockId;
+    private volatile long flags;
+    // Generation of the last write buffer log merged into the tree
+    private long mergedLog;
+    // The header is written at checkpoint and close, and before any page
+    // write, so a page on disk never refers to a block the header lacks
+    private boolean headerDirty;
+    // File length already covered by allocated blocks and their zero fill
+    private long extendedTo;
+
+    // Open snapshots, also the lock for block writes while any are open
+    private final List<Snapshot> snapshots = new ArrayList<>();
+    // Old page images kept for snapshots, in <indexfile>.snap
+    private final Path shadowPath;
+    private FileChannel shadow;
+    private int[] slotRefs = new int[16];
+    private int slotCount;
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+
+    // Pages as they were before the update in progress, in <indexfile>.undo
+    private final Path undoPath;
+    private FileChannel undo;
+    private long undoSize;
+    // Blocks below this existed before the update, the rest need no undo
+    private long undoHighWater;
+    private final Set<Long> undoSaved = new HashSet<>();
 
     public IndexFileManager(String filename) throws IOException
+    {
+        this(filename, DEFAULT_CACHE_CAPACITY);
+    }
+
+    public IndexFileManager(String filename, int cacheCapacity) throws IOException
+    {
+        this(filename, cacheCapacity, false);
+    }
+
+    // With direct set, try to bypass the OS page cache and rely on NodeCache alone
+    public IndexFileManager(String filename, int cacheCapacity, boolean direct) throws IOException
+    {
+        this(filename, cacheCapacity, direct, ReplacementPolicy.NAMES[0]);
+    }
+
+    // policy is one of ReplacementPolicy.NAMES
+    public IndexFileManager(String filename, int cacheCapacity, boolean direct, String policy) throws IOException
+    {
+        this(filename, cacheCapacity, direct, policy, false);
+    }
+
+    // With readOnly set the file must exist, is opened for reading only, and
+    // works without write permission
+    public IndexFileManager(String filename, int cacheCapacity, boolean direct, String policy, boolean readOnly)
+            throws IOException
     {
         File f = new File(filename);
-        boolean create = !f.exists();
+        boolean create = !readOnly && !f.exists();
+        this.path = Path.of(filename);
+        this.shadowPath = Path.of(filename + ".snap");
+        this.undoPath = Path.of(filename + ".undo");
+        this.readOnly = readOnly;
 
         // Open file
-        this.raf = new RandomAccessFile(f, "rw");
+        FileChannel ch = null;
+        if (direct) ch = openDirect(path, readOnly);
+        this.direct = ch != null;
+        if (ch == null)
+        {
+            ch = readOnly ? FileChannel.open(path, StandardOpenOption.READ)
+                    : FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        this.channel = ch;
+        if (this.direct)
+        {
+            // The JDK wants buffers, positions and sizes aligned to the file store block size
+            int align = (int) Files.getFileStore(path).getBlockSize();
+            this.ioUnit = Math.max(align, BLOCK_SIZE);
+            this.pool = new AlignedBufferPool(ioUnit, align, 16);
+        }
+        else
+        {
+            this.ioUnit = BLOCK_SIZE;
+            this.pool = null;
+        }
 
         // Create new header block
         if (create)
         {
-            raf.setLength(BLOCK_SIZE);
             this.rootBlockId = 0L;
             this.nextBlockId = 1L;
             writeHeader();
@@ -31,19 +141,29 @@ public class IndexFileManager
         else
         {
             readHeader();
+            if ((flags & FLAG_UPDATING) != 0L)
+            {
+                if (readOnly) throw new IOException("Index was left mid-update, open it for writing once to recover");
+                rollBack();
+            }
+            else if (!readOnly)
+            {
+                // Left by a crash after its update was committed
+                Files.deleteIfExists(undoPath);
+            }
         }
+        this.extendedTo = channel.size();
 
-        // NodeCache with capacity 3
-        this.cache = new NodeCache(3, raf, this);
+        // NodeCache with capacity 3 unless asked for more
+        this.cache = new NodeCache(cacheCapacity, this, ReplacementPolicy.create(policy, cacheCapacity));
     }
 
     // Read header block
     private void readHeader() throws IOException
     {
-        raf.seek(0);
-        byte[] buf = new byte[BLOCK_SIZE];
-        raf.readFully(buf);
-        ByteBuffer bb = ByteBuffer.wrap(buf);
+        ByteBuffer bb = ByteBuffer.allocate(BLOCK_SIZE);
+        readFully(bb, 0L);
+        bb.flip();
 
         byte[] magicBytes = new byte[8];
         bb.get(magicBytes);
@@ -54,31 +174,156 @@ public class IndexFileManager
         }
         rootBlockId = bb.getLong();
         nextBlockId = bb.getLong();
+        flags = bb.getLong(); // zero in files from before flags existed
+        mergedLog = bb.getLong();
+    }
+
+    // Write header block if anything in it changed
+    private synchronized void writeHeaderIfDirty() throws IOException
+    {
+        if (headerDirty) writeHeader();
     }
 
     // Write header block
-    private void writeHeader() throws IOException
+    private synchronized void writeHeader() throws IOException
     {
-        raf.seek(0);
         ByteBuffer bb = ByteBuffer.allocate(BLOCK_SIZE);
         bb.put(MAGIC.getBytes("US-ASCII")); // 8 bytes
         bb.putLong(rootBlockId);
         bb.putLong(nextBlockId);
+        bb.putLong(flags);
+        bb.putLong(mergedLog);
         // rest zero
-        raf.write(bb.array());
+        bb.clear();
+        writeFully(bb, 0L);
+        headerDirty = false;
+    }
+
+    // Open with O_DIRECT, or return null if the JDK or file system refuses
+    private static FileChannel openDirect(Path p, boolean readOnly)
+    {
+        OpenOption[] opts = readOnly ? new OpenOption[] { StandardOpenOption.READ, ExtendedOpenOption.DIRECT }
+                : new OpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, ExtendedOpenOption.DIRECT };
+        try
+        {
+            return FileChannel.open(p, opts);
+        }
+        catch (IOException | UnsupportedOperationException e)
+        {
+            return null;
+        }
+    }
+
+    // True if O_DIRECT was asked for and the file system accepted it
+    public boolean isDirect()
+    {
+        return direct;
+    }
+
+    public boolean isReadOnly()
+    {
+        return readOnly;
+    }
+
+    private void checkWritable()
+    {
+        if (readOnly) throw new IllegalStateException("Index is open read-only");
+    }
+
+    // Reads and writes are one 512 byte page at a page-aligned offset
+    private void readFully(ByteBuffer bb, long offset) throws IOException
+    {
+        if (direct)
+        {
+            readDirect(bb, offset);
+            return;
+        }
+        while (bb.hasRemaining())
+        {
+            int n = channel.read(bb, offset + bb.position());
+            if (n < 0) throw new EOFException("Unexpected end of index file");
+        }
+    }
+
+    private void writeFully(ByteBuffer bb, long offset) throws IOException
+    {
+        if (direct)
+        {
+            writeDirect(bb, offset);
+            return;
+        }
+        while (bb.hasRemaining())
+        {
+            channel.write(bb, offset + bb.position());
+        }
+    }
+
+    // Read the aligned unit holding the page and copy the page out
+    private void readDirect(ByteBuffer bb, long offset) throws IOException
+    {
+        long unitStart = offset - offset % ioUnit;
+        ByteBuffer unit = pool.acquire();
+        try
+        {
+            readUnit(unit, unitStart);
+            unit.position((int) (offset - unitStart)).limit((int) (offset - unitStart) + bb.remaining());
+            bb.put(unit);
+        }
+        finally
+        {
+            pool.release(unit);
+        }
+    }
+
+    // Write the page into its aligned unit. Locked, so two pages in one unit
+    // cannot overwrite each other's update.
+    private void writeDirect(ByteBuffer bb, long offset) throws IOException
+    {
+        long unitStart = offset - offset % ioUnit;
+        ByteBuffer unit = pool.acquire();
+        try
+        {
+            synchronized (directLock)
+            {
+                if (bb.remaining() < ioUnit) readUnit(unit, unitStart);
+                unit.clear().position((int) (offset - unitStart));
+                unit.put(bb);
+                unit.clear();
+                while (unit.hasRemaining()) channel.write(unit, unitStart + unit.position());
+            }
+        }
+        finally
+        {
+            pool.release(unit);
+        }
+    }
+
+    // Fill unit from the file, with zeros past the end of the file
+    private void readUnit(ByteBuffer unit, long unitStart) throws IOException
+    {
+        unit.clear();
+        while (unit.hasRemaining())
+        {
+            int n = channel.read(unit, unitStart + unit.position());
+            // A short read only happens at the end of the file
+            if (n <= 0 || unit.hasRemaining()) break;
+        }
+        while (unit.hasRemaining()) unit.put((byte) 0);
+        unit.clear();
     }
 
     // Read 512 byte block
     public byte[] readBlockBytes(long blockId) throws IOException
     {
         long offset = blockId * BLOCK_SIZE;
-        if (offset + BLOCK_SIZE > raf.length())
+        if (offset + BLOCK_SIZE > channel.size())
         {
             throw new IOException("Attempt to read beyond EOF: block " + blockId);
         }
-        raf.seek(offset);
         byte[] buf = new byte[BLOCK_SIZE];
-        raf.readFully(buf);
+        readFully(ByteBuffer.wrap(buf), offset);
+        blockReads.increment();
         return buf;
     }
 
@@ -87,22 +332,270 @@ public class IndexFileManager
     {
         if (data.length != BLOCK_SIZE) throw new IllegalArgumentException("Block must be 512 bytes");
         long offset = blockId * BLOCK_SIZE;
-        raf.seek(offset);
-        raf.write(data);
-        if (raf.length() < offset + BLOCK_SIZE) raf.setLength(offset + BLOCK_SIZE);
+        // Any block this page points to must already be counted in nextBlockId
+        writeHeaderIfDirty();
+        synchronized (snapshots)
+        {
+            if (!snapshots.isEmpty()) preserveForSnapshots(blockId);
+            if (undo != null) preserveForUndo(blockId);
+            writeFully(ByteBuffer.wrap(data), offset);
+        }
+        blockWrites.increment();
+    }
+
+    public long getBlockReads()
+    {
+        return blockReads.sum();
+    }
+
+    public long getBlockWrites()
+    {
+        return blockWrites.sum();
+    }
+
+    // Open a snapshot of the tree as it is now. Call it between operations,
+    // from the thread doing the writes, so no insert is half done.
+    public Snapshot openSnapshot() throws IOException
+    {
+        // Afterwards the file holds exactly what the snapshot should see
+        cache.flushDirty();
+        synchronized (snapshots)
+        {
+            Snapshot s = new Snapshot(this, getRootBlockId(), getNextBlockId());
+            snapshots.add(s);
+            return s;
+        }
+    }
+
+    private synchronized long getNextBlockId()
+    {
+        return nextBlockId;
+    }
+
+    // Before overwriting a block, copy its old contents for any snapshot that still sees it
+    private void preserveForSnapshots(long blockId) throws IOException
+    {
+        int slot = -1;
+        for (Snapshot s : snapshots)
+        {
+            if (!s.needsCopy(blockId)) continue;
+            if (slot < 0)
+            {
+                slot = allocateSlot();
+                writeShadow(slot, readBlockBytes(blockId));
+            }
+            s.preserved.put(blockId, slot);
+            slotRefs[slot]++;
+        }
+    }
+
+    private int allocateSlot() throws IOException
+    {
+        if (!freeSlots.isEmpty()) return freeSlots.pop();
+        if (shadow == null)
+        {
+            shadow = FileChannel.open(shadowPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        if (slotCount == slotRefs.length) slotRefs = Arrays.copyOf(slotRefs, slotCount * 2);
+        return slotCount++;
+    }
+
+    private void writeShadow(int slot, byte[] data) throws IOException
+    {
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        long offset = (long) slot * BLOCK_SIZE;
+        while (bb.hasRemaining()) shadow.write(bb, offset + bb.position());
+    }
+
+    // Read a block as the snapshot sees it
+    byte[] readSnapshotBlock(Snapshot s, long blockId) throws IOException
+    {
+        synchronized (snapshots)
+        {
+            Integer slot = s.preserved.get(blockId);
+            if (slot == null) return readBlockBytes(blockId);
+
+            byte[] buf = new byte[BLOCK_SIZE];
+            ByteBuffer bb = ByteBuffer.wrap(buf);
+            long offset = (long) slot * BLOCK_SIZE;
+            while (bb.hasRemaining())
+            {
+                if (shadow.read(bb, offset + bb.position()) < 0) throw new EOFException("Snapshot page missing");
+            }
+            return buf;
+        }
+    }
+
+    // Drop a snapshot and free the page copies only it was using
+    void releaseSnapshot(Snapshot s) throws IOException
+    {
+        synchronized (snapshots)
+        {
+            if (!snapshots.remove(s)) return;
+            for (int slot : s.preserved.values())
+            {
+                if (--slotRefs[slot] == 0) freeSlots.push(slot);
+            }
+            s.preserved.clear();
+            if (snapshots.isEmpty() && shadow != null)
+            {
+                // Nothing left to keep, give the space back
+                shadow.close();
+                shadow = null;
+                slotCount = 0;
+                freeSlots.clear();
+                Files.deleteIfExists(shadowPath);
+            }
+        }
+    }
+
+    // Start an update that commitUpdate makes durable as a whole. Until then
+    // the old bytes of each page are forced to the undo log before the page is
+    // first overwritten, and opening the index after a crash puts them back.
+    public void beginUpdate() throws IOException
+    {
+        checkWritable();
+        checkpoint();
+        synchronized (snapshots)
+        {
+            if (undo != null) throw new IllegalStateException("An update is already in progress");
+            undo = FileChannel.open(undoPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            undoSize = 0L;
+            undoSaved.clear();
+            undoHighWater = getNextBlockId();
+            // The header as it is now, without the updating flag
+            appendUndo(0L, readBlockBytes(0L));
+            undo.force(true);
+        }
+        synchronized (this)
+        {
+            flags |= FLAG_UPDATING;
+            writeHeader();
+        }
+        channel.force(false);
+    }
+
+    // Write every page and the header, which records logGeneration as merged
+    // and clears the updating flag in one page write, then drop the undo log
+    public void commitUpdate(long logGeneration) throws IOException
+    {
+        if (undo == null) throw new IllegalStateException("No update in progress");
+        cache.flushDirty();
+        synchronized (this)
+        {
+            flags &= ~FLAG_UPDATING;
+            mergedLog = logGeneration;
+            writeHeader();
+        }
+        channel.force(false);
+        synchronized (snapshots)
+        {
+            undo.close();
+            undo = null;
+            undoSaved.clear();
+        }
+        Files.deleteIfExists(undoPath);
+    }
+
+    // Generation of the last write buffer log merged into the tree, 0 if none
+    public synchronized long getMergedLog()
+    {
+        return mergedLog;
+    }
+
+    // Before overwriting a block the update has not touched yet, force its old contents to the undo log
+    private void preserveForUndo(long blockId) throws IOException
+    {
+        if (blockId >= undoHighWater || !undoSaved.add(blockId)) return;
+        appendUndo(blockId, readBlockBytes(blockId));
+        undo.force(false);
+    }
+
+    private void appendUndo(long blockId, byte[] data) throws IOException
+    {
+        ByteBuffer bb = ByteBuffer.allocate(UNDO_RECORD_BYTES);
+        bb.putLong(blockId).put(data).flip();
+        while (bb.hasRemaining()) undo.write(bb, undoSize + bb.position());
+        undoSize += UNDO_RECORD_BYTES;
+    }
+
+    // Put back the pages and header an interrupted update changed
+    private void rollBack() throws IOException
+    {
+        if (!Files.exists(undoPath)) throw new IOException("Index was left mid-update and its undo log is missing");
+        try (FileChannel in = FileChannel.open(undoPath, StandardOpenOption.READ))
+        {
+            ByteBuffer record = ByteBuffer.allocate(UNDO_RECORD_BYTES);
+            // A torn record at the end was never followed by its page write
+            for (long pos = 0L; pos + UNDO_RECORD_BYTES <= in.size(); pos += UNDO_RECORD_BYTES)
+            {
+                record.clear();
+                while (record.hasRemaining())
+                {
+                    if (in.read(record, pos + record.position()) < 0) throw new EOFException("Undo log shrank");
+                }
+                record.flip();
+                long blockId = record.getLong();
+                // writeFully counts from the buffer's position, so hand it the page alone
+                writeFully(record.slice(), blockId * BLOCK_SIZE);
+            }
+        }
+        channel.force(false);
+        readHeader();
+        Files.delete(undoPath);
+    }
+
+    // True if nodes keep subtree key counts for count, rank and select
+    public boolean hasCounts()
+    {
+        return (flags & FLAG_COUNTS) != 0L;
+    }
+
+    // Turn on subtree counts, only allowed while the tree is empty
+    public synchronized void enableCounts() throws IOException
+    {
+        checkWritable();
+        if (rootBlockId != 0L) throw new IllegalStateException("Counts can only be enabled on an empty index");
+        flags |= FLAG_COUNTS;
+        headerDirty = true;
     }
 
     // Allocate a new block index
     public synchronized long allocateBlock() throws IOException
     {
+        checkWritable();
         long id = nextBlockId;
         nextBlockId++;
-        long newLength = id * BLOCK_SIZE + BLOCK_SIZE;
-        if (raf.length() < newLength) raf.setLength(newLength);
-        writeHeader();
+        extendTo(nextBlockId * BLOCK_SIZE);
+        headerDirty = true;
         return id;
     }
 
+    // Allocate count consecutive blocks and return the first id
+    public synchronized long allocateBlocks(long count) throws IOException
+    {
+        checkWritable();
+        long first = nextBlockId;
+        nextBlockId += count;
+        extendTo(nextBlockId * BLOCK_SIZE);
+        headerDirty = true;
+        return first;
+    }
+
+    // Grow the file to at least length by zero filling the last I/O unit, so
+    // in direct mode a new page rarely costs a write and never a read.
+    // Skipped units below it are holes that read as zeros.
+    private void extendTo(long length) throws IOException
+    {
+        if (length <= extendedTo) return;
+        long last = (length - 1) - (length - 1) % ioUnit;
+        long from = Math.max(last, extendedTo);
+        writeFully(ByteBuffer.allocate((int) (last + ioUnit - from)), from);
+        extendedTo = last + ioUnit;
+    }
+
     // Root id accessors
     public synchronized long getRootBlockId()
     {
@@ -111,8 +604,9 @@ public class IndexFileManager
 
     public synchronized void setRootBlockId(long id) throws IOException
     {
+        checkWritable();
         this.rootBlockId = id;
-        writeHeader();
+        headerDirty = true;
     }
 
     public BTreeNode readNode(long blockId) throws IOException
@@ -121,15 +615,95 @@ public class IndexFileManager
         return cache.get(blockId);
     }
 
+    public BTreeNode readNodeForScan(long blockId) throws IOException
+    {
+        if (blockId == 0L) throw new IOException("BlockId 0 is header, not a node");
+        return cache.get(blockId, true);
+    }
+
     public void writeNode(BTreeNode node) throws IOException
     {
+        checkWritable();
         cache.put(node, true);
     }
 
+    // Write every dirty page and force the file to disk
+    public void checkpoint() throws IOException
+    {
+        cache.flushDirty();
+        // After the pages, so the header never points at a node not yet written
+        writeHeaderIfDirty();
+        channel.force(false);
+    }
+
+    // Copy the pages as they are on disk to a new file. Call between operations.
+    public void backupTo(String target) throws IOException
+    {
+        checkpoint();
+        // Own read channel, transferTo does not work on an O_DIRECT one
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(Path.of(target), StandardOpenOption.CREATE_NEW,
+                     StandardOpenOption.WRITE))
+        {
+            copyAll(in, out);
+        }
+    }
+
+    // Copy a page backup into a new index file
+    public static void restoreFrom(String backup, String target) throws IOException
+    {
+        try (FileChannel in = FileChannel.open(Path.of(backup), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(Path.of(target), StandardOpenOption.CREATE_NEW,
+                     StandardOpenOption.WRITE))
+        {
+            copyAll(in, out);
+            out.force(false);
+        }
+    }
+
+    // File to file copy that can stay in the kernel
+    private static void copyAll(FileChannel in, FileChannel out) throws IOException
+    {
+        long size = in.size();
+        long pos = 0L;
+        while (pos < size) pos += in.transferTo(pos, size - pos, out);
+    }
+
+    // Record the cache's block accesses to a file until close
+    public void startTrace(String filename) throws IOException
+    {
+        cache.startTrace(filename);
+    }
+
+    // Start writing back dirty pages in the background. Read-only has none.
+    public synchronized void startFlusher(double dirtyRatio, long maxAgeMillis, long intervalMillis)
+    {
+        if (flusher != null || readOnly) return;
+        flusher = new PageFlusher(this, cache, dirtyRatio, maxAgeMillis, intervalMillis);
+        flusher.start();
+    }
+
     // Flush and close
     public void flushAndClose() throws IOException
     {
-        cache.flushAll();
-        raf.close();
+        try
+        {
+            if (flusher != null) flusher.stop();
+        }
+        finally
+        {
+            cache.flushAll();
+            writeHeaderIfDirty();
+            cache.stopTrace();
+            List<Snapshot> open;
+            synchronized (snapshots)
+            {
+                open = new ArrayList<>(snapshots);
+            }
+            for (Snapshot s : open) s.close();
+            // An unfinished update keeps its undo log, the next open rolls it back
+            if (undo != null) undo.close();
+            channel.close();
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,68 @@
+// Counts latencies in log scale buckets: exact below 16, then 8 buckets per
+// power of two, so any percentile is within 12.5% of the true value.
+// Not thread safe, keep one per thread and merge them.
+public class LatencyHistogram
+{
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int LINEAR = 2 * SUB;
+
+    private final long[] counts = new long[LINEAR + (64 - SUB_BITS - 1) * SUB];
+    private long total;
+    private long max;
+
+    public void record(long value)
+    {
+        if (value < 0L) value = 0L;
+        counts[bucket(value)]++;
+        total++;
+        max = Math.max(max, value);
+    }
+
+    public void merge(LatencyHistogram other)
+    {
+        for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    public long count()
+    {
+        return total;
+    }
+
+    public long max()
+    {
+        return max;
+    }
+
+    // Upper bound of the bucket holding the q-th quantile, 0 < q <= 1
+    public long percentile(double q)
+    {
+        if (total == 0L) return 0L;
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0L;
+        for (int i = 0; i < counts.length; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(upperBound(i), max);
+        }
+        return max;
+    }
+
+    private static int bucket(long v)
+    {
+        if (v < LINEAR) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB - 1);
+        return LINEAR + (exp - SUB_BITS - 1) * SUB + sub;
+    }
+
+    private static long upperBound(int i)
+    {
+        if (i < LINEAR) return i;
+        int exp = (i - LINEAR) / SUB + SUB_BITS + 1;
+        int sub = (i - LINEAR) % SUB;
+        return ((long) (SUB + sub + 1) << (exp - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.Arrays;
+
+// Open addressing map from long keys to int values, with no boxing.
+// Sized once for a known maximum number of entries.
+public class LongIntMap
+{
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final long[] keys;
+    private final int[] values;
+    private final int mask;
+    private int size;
+
+    public LongIntMap(int maxEntries)
+    {
+        // At most half full keeps probe sequences short
+        int cap = Integer.highestOneBit(Math.max(4, maxEntries) * 2 - 1) << 1;
+        keys = new long[cap];
+        values = new int[cap];
+        mask = cap - 1;
+        Arrays.fill(keys, EMPTY);
+    }
+
+    private int slot(long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    // Value for key, or -1 if absent
+    public int get(long key)
+    {
+        for (int i = slot(key); ; i = (i + 1) & mask)
+        {
+            if (keys[i] == key) return values[i];
+            if (keys[i] == EMPTY) return -1;
+        }
+    }
+
+    public void put(long key, int value)
+    {
+        if (key == EMPTY) throw new IllegalArgumentException("Key " + EMPTY + " is reserved");
+        for (int i = slot(key); ; i = (i + 1) & mask)
+        {
+            if (keys[i] == key)
+            {
+                values[i] = value;
+                return;
+            }
+            if (keys[i] == EMPTY)
+            {
+                if (size >= keys.length / 2) throw new IllegalStateException("LongIntMap is full");
+                keys[i] = key;
+                values[i] = value;
+                size++;
+                return;
+            }
+        }
+    }
+
+    public void remove(long key)
+    {
+        int i = slot(key);
+        while (keys[i] != key)
+        {
+            if (keys[i] == EMPTY) return;
+            i = (i + 1) & mask;
+        }
+        // Shift later entries of the probe run back into the gap
+        int gap = i;
+        for (int j = (gap + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask)
+        {
+            int home = slot(keys[j]);
+            // Move j into gap unless its home lies cyclically in (gap, j]
+            boolean stays = gap <= j ? (gap < home && home <= j) : (gap < home || home <= j);
+            if (!stays)
+            {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = EMPTY;
+        size--;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public void clear()
+    {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+}
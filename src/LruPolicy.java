@@ -0,0 +1,37 @@
+// Least recently used. Scan pages go in at the old end and are not moved
+// on a scan hit, so a long scan recycles a single frame.
+public class LruPolicy implements ReplacementPolicy
+{
+    private final FrameLists lists;
+
+    public LruPolicy(int capacity)
+    {
+        lists = new FrameLists(capacity, 1);
+    }
+
+    public void onHit(int frame, boolean scan)
+    {
+        if (!scan) lists.moveToLast(0, frame);
+    }
+
+    public void onAdmit(int frame, long blockId, boolean scan)
+    {
+        if (scan) lists.addFirst(0, frame);
+        else lists.addLast(0, frame);
+    }
+
+    public int victim()
+    {
+        return lists.first(0);
+    }
+
+    public void onEvict(int frame, long blockId)
+    {
+        lists.remove(frame);
+    }
+
+    public void clear()
+    {
+        lists.clear();
+    }
+}
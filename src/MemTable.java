@@ -0,0 +1,210 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Sorted in-memory buffer of recent inserts, backed by an append-only log.
+// Like the tree it keeps every insert of a key, in the order they came.
+//
+// The log starts with a magic and a generation number, one higher each time
+// the log is cleared. The index header records the last generation merged,
+// so a log whose merge finished just before a crash is not replayed again.
+public class MemTable
+{
+    private static final int RECORD_BYTES = 16; // key + value
+    private static final int LOG_BUFFER_BYTES = 4096;
+    private static final String LOG_MAGIC = "4348WAL1"; // exactly 8 ASCII bytes
+
+    private final int threshold;
+    private final Path logPath;
+    private final FileChannel log;
+    private final ByteBuffer pending = ByteBuffer.allocate(LOG_BUFFER_BYTES);
+
+    private long[] keys;
+    private long[] values;
+    private int size;
+    private long generation;
+
+    // Opens the log, replaying any entries left in it unless the tree already
+    // holds them, that is if its generation is at most mergedLog
+    public MemTable(String logFile, int threshold, long mergedLog) throws IOException
+    {
+        this.threshold = threshold;
+        this.keys = new long[Math.min(threshold, 1024)];
+        this.values = new long[keys.length];
+        this.logPath = Path.of(logFile);
+        this.log = FileChannel.open(logPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        replay(mergedLog);
+    }
+
+    private void replay(long mergedLog) throws IOException
+    {
+        generation = mergedLog + 1;
+        if (log.size() < RECORD_BYTES)
+        {
+            // New, or torn before its header was written
+            startLog();
+            return;
+        }
+        ByteBuffer head = ByteBuffer.allocate(RECORD_BYTES);
+        while (head.hasRemaining()) log.read(head, head.position());
+        head.flip();
+        byte[] magic = new byte[8];
+        head.get(magic);
+        long pos = 0L;
+        if (LOG_MAGIC.equals(new String(magic, StandardCharsets.US_ASCII)))
+        {
+            long logGeneration = head.getLong();
+            if (logGeneration <= mergedLog)
+            {
+                startLog();
+                return;
+            }
+            generation = logGeneration;
+            pos = RECORD_BYTES;
+        }
+        // Otherwise a log from before headers, and every record counts
+
+        // A torn record at the end is ignored
+        long end = pos + (log.size() - pos) / RECORD_BYTES * RECORD_BYTES;
+        ByteBuffer bb = ByteBuffer.allocate(LOG_BUFFER_BYTES);
+        while (pos < end)
+        {
+            bb.clear();
+            bb.limit((int) Math.min(bb.capacity(), end - pos));
+            while (bb.hasRemaining())
+            {
+                if (log.read(bb, pos + bb.position()) < 0) throw new IOException("Log shrank during replay");
+            }
+            bb.flip();
+            while (bb.hasRemaining()) putSorted(bb.getLong(), bb.getLong());
+            pos += bb.limit();
+        }
+        log.position(end);
+    }
+
+    // Truncate the log to just its header and force that to disk
+    private void startLog() throws IOException
+    {
+        log.truncate(0L);
+        ByteBuffer head = ByteBuffer.allocate(RECORD_BYTES);
+        head.put(LOG_MAGIC.getBytes(StandardCharsets.US_ASCII)).putLong(generation).flip();
+        while (head.hasRemaining()) log.write(head, head.position());
+        log.force(true);
+        log.position(RECORD_BYTES);
+    }
+
+    // Generation of the log, for IndexFileManager.commitUpdate
+    public long getGeneration()
+    {
+        return generation;
+    }
+
+    // Log the pair and add it to the buffer, after any equal keys
+    public void put(long key, long value) throws IOException
+    {
+        if (pending.remaining() < RECORD_BYTES) writePending();
+        pending.putLong(key);
+        pending.putLong(value);
+        putSorted(key, value);
+    }
+
+    private void putSorted(long key, long value)
+    {
+        int i = upperBound(key);
+        if (size == keys.length)
+        {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(values, i, values, i + 1, size - i);
+        keys[i] = key;
+        values[i] = value;
+        size++;
+    }
+
+    // Write buffered log records to the file and force them to disk
+    private void writePending() throws IOException
+    {
+        pending.flip();
+        while (pending.hasRemaining()) log.write(pending);
+        pending.clear();
+        log.force(false);
+    }
+
+    // Make every put so far durable
+    public void sync() throws IOException
+    {
+        if (pending.position() > 0) writePending();
+    }
+
+    // Index of the first buffered copy of key, or -1
+    public int find(long key)
+    {
+        int lo = 0, hi = size;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo < size && keys[lo] == key ? lo : -1;
+    }
+
+    // Index just past the last key <= key
+    private int upperBound(long key)
+    {
+        int lo = 0, hi = size;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] <= key) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isFull()
+    {
+        return size >= threshold;
+    }
+
+    public long getKey(int i)
+    {
+        return keys[i];
+    }
+
+    public long getValue(int i)
+    {
+        return values[i];
+    }
+
+    // Empty the buffer and start the next generation of the log, once the
+    // tree holds the contents and records this generation as merged
+    public void clear() throws IOException
+    {
+        size = 0;
+        pending.clear();
+        generation++;
+        startLog();
+    }
+
+    // Close the log, deleting it if nothing is left in it
+    public void close() throws IOException
+    {
+        if (size > 0) sync();
+        log.close();
+        if (size == 0) Files.deleteIfExists(logPath);
+    }
+}
@@ -1,104 +1,252 @@
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
 
+// Page cache that keeps block bytes off the heap.
+//
+// Pages live in frames of direct ByteBuffer chunks, and the frame table is
+// plain primitive arrays, so heap use and GC work stay flat as the cache grows.
+// get() hands out a fresh BTreeNode decoded from the frame, and put() encodes
+// the node back into it. Which frame to evict is up to a ReplacementPolicy.
 public class NodeCache
 {
+    private static final int BLOCK_SIZE = IndexFileManager.BLOCK_SIZE;
+    // Frames per direct buffer chunk (512MB of pages)
+    private static final int CHUNK_SHIFT = 20;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+    private static final int NONE = FrameLists.NONE;
+
     private final int capacity;
-    private final RandomAccessFile raf;
     private final IndexFileManager manager;
+    private final ByteBuffer[] chunks;
+    private final byte[] scratch = new byte[BLOCK_SIZE];
 
-    private static class Entry
-    {
-        BTreeNode node;
+    // Frame table
+    private final LongIntMap frameOf;
+    private final long[] frameBlock;
+    private final boolean[] dirty;
+    private final long[] dirtySince;
+    // Stamp of the last change to each frame, to tell if it changed during a write
+    private final long[] version;
+    private long nextVersion;
+    private final ReplacementPolicy policy;
+    // Dirty frames in the order they became dirty, as list 0
+    private final FrameLists dirtyList;
 
-        // needs a write back
-        boolean dirty;
+    // Held for every page write, and taken while holding the cache lock, so
+    // writes of a page reach the file in the order its bytes were copied
+    private final ReentrantLock writeLock = new ReentrantLock();
 
-        Entry(BTreeNode n, boolean d)
-        {
-            node = n; dirty = d;
-        }
-    }
+    // Frames from here on have never been used
+    private int nextFresh;
+
+    // Records every access when set
+    private CacheTrace trace;
 
-    private final LinkedHashMap<Long, Entry> map;
+    public NodeCache(int capacity, IndexFileManager manager)
+    {
+        this(capacity, manager, new LruPolicy(capacity));
+    }
 
-    public NodeCache(int capacity, RandomAccessFile raf, IndexFileManager manager)
+    public NodeCache(int capacity, IndexFileManager manager, ReplacementPolicy policy)
     {
         this.capacity = capacity;
-        this.raf = raf;
         this.manager = manager;
-        this.map = new LinkedHashMap<Long, Entry>(capacity, 0.75f, true)
-        {
-            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest)
-            {
-                if (size() > NodeCache.this.capacity)
-                {
-                    try
-                    {
-                        evictEntry(eldest.getKey(), eldest.getValue());
-                    }
-                    catch (IOException e)
-                    {
-                        throw new RuntimeException(e);
-                    }
-                    return true;
-                }
-                return false;
-            }
-        };
+        this.chunks = new ByteBuffer[(int) (((long) capacity + CHUNK_MASK) >>> CHUNK_SHIFT)];
+        this.frameOf = new LongIntMap(capacity);
+        this.frameBlock = new long[capacity];
+        this.dirty = new boolean[capacity];
+        this.dirtySince = new long[capacity];
+        this.version = new long[capacity];
+        this.policy = policy;
+        this.dirtyList = new FrameLists(capacity, 1);
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
     }
 
     // Get node from cache or load from disk
-    public synchronized BTreeNode get(long blockId) throws IOException
+    public BTreeNode get(long blockId) throws IOException
     {
-        Entry e = map.get(blockId);
-        if (e != null) return e.node;
+        return get(blockId, false);
+    }
+
+    // With scan set the access is low priority, for pages an in-order walk
+    // reads once
+    public synchronized BTreeNode get(long blockId, boolean scan) throws IOException
+    {
+        if (trace != null) trace.record(blockId, scan);
+        int f = frameOf.get(blockId);
+        if (f != NONE)
+        {
+            policy.onHit(f, scan);
+            return BTreeNode.fromBuffer(frame(f), manager.hasCounts());
+        }
 
         byte[] block = manager.readBlockBytes(blockId);
-        BTreeNode node = BTreeNode.fromBytes(block);
-        map.put(blockId, new Entry(node, false));
-        return node;
+        f = admit(blockId, scan);
+        frame(f).put(block);
+        return BTreeNode.fromBytes(block, manager.hasCounts());
     }
 
     // Put node into cache and mark "dirty" if true
     public synchronized void put(BTreeNode node, boolean dirty) throws IOException
     {
         long id = node.getBlockID();
-        Entry e = map.get(id);
-        if (e != null)
+        if (trace != null) trace.record(id, false);
+        int f = frameOf.get(id);
+        if (f != NONE) policy.onHit(f, false);
+        else f = admit(id, false);
+        node.writeTo(frame(f), manager.hasCounts());
+        version[f] = ++nextVersion;
+        if (dirty) markDirty(f);
+    }
+
+    // Fraction of cached entries that are dirty
+    public synchronized double dirtyRatio()
+    {
+        return frameOf.size() == 0 ? 0.0 : (double) dirtyList.size(0) / capacity;
+    }
+
+    // Age in milliseconds of the oldest dirty entry, or 0 if none
+    public synchronized long oldestDirtyAge()
+    {
+        int f = dirtyList.first(0);
+        if (f == NONE) return 0L;
+        return System.currentTimeMillis() - dirtySince[f];
+    }
+
+    // Writes back the oldest dirty entry without evicting it.
+    // Returns false if nothing was dirty. For the flusher: the disk write is
+    // done without the cache lock, so gets and puts carry on meanwhile.
+    public boolean cleanOne() throws IOException
+    {
+        byte[] copy = new byte[BLOCK_SIZE];
+        long blockId;
+        long stamp;
+        synchronized (this)
         {
-            e.node = node;
-            e.dirty = e.dirty || dirty;
+            int f = dirtyList.first(0);
+            if (f == NONE) return false;
+            frame(f).get(copy);
+            blockId = frameBlock[f];
+            stamp = version[f];
+            writeLock.lock();
         }
-        else
+        try
+        {
+            manager.writeBlockBytes(blockId, copy);
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+        synchronized (this)
         {
-            map.put(id, new Entry(node, dirty));
+            // Still dirty if it was changed, or evicted and loaded again, during the write
+            int f = frameOf.get(blockId);
+            if (f != NONE && dirty[f] && version[f] == stamp) markClean(f);
         }
+        return true;
     }
 
-    // Writes a node if dirty
-    private void evictEntry(Long blockId, Entry entry) throws IOException
+    // Write all dirty entries to disk but keep them cached
+    public synchronized void flushDirty() throws IOException
     {
-        if (entry.dirty)
-        {
-            // write to disk
-            manager.writeBlockBytes(blockId, entry.node.toBytes());
-        }
+        for (int f = dirtyList.first(0); f != NONE; f = dirtyList.first(0)) writeBack(f);
     }
 
     // Flush all to disk and clear the cache
     public synchronized void flushAll() throws IOException
     {
-        for (Map.Entry<Long, Entry> e : map.entrySet())
+        flushDirty();
+        frameOf.clear();
+        policy.clear();
+        nextFresh = 0;
+    }
+
+    // Record accesses to a trace file from now on
+    public synchronized void startTrace(String filename) throws IOException
+    {
+        stopTrace();
+        trace = new CacheTrace(filename);
+    }
+
+    public synchronized void stopTrace() throws IOException
+    {
+        if (trace == null) return;
+        trace.close();
+        trace = null;
+    }
+
+    // Buffer positioned at the start of frame f
+    private ByteBuffer frame(int f)
+    {
+        int c = f >>> CHUNK_SHIFT;
+        if (chunks[c] == null)
+        {
+            // Allocated on first use, and no bigger than the cache needs
+            int frames = Math.min(CHUNK_MASK + 1, capacity - (c << CHUNK_SHIFT));
+            chunks[c] = ByteBuffer.allocateDirect(frames * BLOCK_SIZE);
+        }
+        ByteBuffer bb = chunks[c];
+        bb.limit(bb.capacity());
+        bb.position((f & CHUNK_MASK) * BLOCK_SIZE);
+        return bb;
+    }
+
+    // Give blockId a frame, evicting the policy's victim if full
+    private int admit(long blockId, boolean scan) throws IOException
+    {
+        int f;
+        if (nextFresh < capacity)
         {
-            if (e.getValue().dirty)
-            {
-                manager.writeBlockBytes(e.getKey(), e.getValue().node.toBytes());
-                e.getValue().dirty = false;
-            }
+            f = nextFresh++;
         }
-        map.clear();
+        else
+        {
+            f = policy.victim();
+            if (dirty[f]) writeBack(f);
+            frameOf.remove(frameBlock[f]);
+            policy.onEvict(f, frameBlock[f]);
+        }
+        frameBlock[f] = blockId;
+        dirty[f] = false;
+        version[f] = ++nextVersion;
+        frameOf.put(blockId, f);
+        policy.onAdmit(f, blockId, scan);
+        return f;
+    }
+
+    private void markDirty(int f)
+    {
+        if (dirty[f]) return;
+        dirty[f] = true;
+        dirtySince[f] = System.currentTimeMillis();
+        dirtyList.addLast(0, f);
+    }
+
+    // Write frame f to disk and mark it clean
+    private void writeBack(int f) throws IOException
+    {
+        frame(f).get(scratch);
+        writeLock.lock();
+        try
+        {
+            manager.writeBlockBytes(frameBlock[f], scratch);
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+        markClean(f);
+    }
+
+    private void markClean(int f)
+    {
+        dirty[f] = false;
+        dirtyList.remove(f);
     }
-}
\ No newline at end of file
+}
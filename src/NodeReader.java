@@ -0,0 +1,15 @@
+import java.io.IOException;
+
+// Something a BTreeCursor can walk: the live index or a snapshot of it
+public interface NodeReader
+{
+    long getRootBlockId();
+
+    BTreeNode readNode(long blockId) throws IOException;
+
+    // Read for an in-order walk, which a cache can treat as low priority
+    default BTreeNode readNodeForScan(long blockId) throws IOException
+    {
+        return readNode(blockId);
+    }
+}
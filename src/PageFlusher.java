@@ -0,0 +1,98 @@
+import java.io.IOException;
+
+// Background thread that writes back dirty NodeCache pages, and every
+// maxAgeMillis checkpoints the file: all dirty pages, the header and a force.
+public class PageFlusher implements Runnable
+{
+    public static final double DEFAULT_DIRTY_RATIO = 0.5;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 1000L;
+    public static final long DEFAULT_INTERVAL_MILLIS = 50L;
+
+    private final IndexFileManager manager;
+    private final NodeCache cache;
+    private final double dirtyRatio;
+    private final long maxAgeMillis;
+    private final long intervalMillis;
+    private final Thread thread;
+    private long lastCheckpoint = System.nanoTime();
+
+    private volatile boolean running = true;
+    private volatile IOException failure;
+
+    public PageFlusher(IndexFileManager manager, NodeCache cache, double dirtyRatio, long maxAgeMillis,
+            long intervalMillis)
+    {
+        this.manager = manager;
+        this.cache = cache;
+        this.dirtyRatio = dirtyRatio;
+        this.maxAgeMillis = maxAgeMillis;
+        this.intervalMillis = intervalMillis;
+        this.thread = new Thread(this, "page-flusher");
+        this.thread.setDaemon(true);
+    }
+
+    public void start()
+    {
+        thread.start();
+    }
+
+    public void run()
+    {
+        while (running)
+        {
+            try
+            {
+                // Clean pages while either threshold is crossed
+                while (running && overThreshold())
+                {
+                    if (!cache.cleanOne()) break;
+                }
+                // Nothing is durable until the header is written and the file forced
+                if (running && System.nanoTime() - lastCheckpoint >= maxAgeMillis * 1_000_000L)
+                {
+                    manager.checkpoint();
+                    lastCheckpoint = System.nanoTime();
+                }
+                synchronized (this)
+                {
+                    if (running) wait(intervalMillis);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                running = false;
+            }
+            catch (IOException e)
+            {
+                failure = e;
+                running = false;
+            }
+        }
+    }
+
+    private boolean overThreshold()
+    {
+        if (cache.dirtyRatio() > dirtyRatio) return true;
+        return cache.oldestDirtyAge() > maxAgeMillis;
+    }
+
+    // Stop the thread and report any write error it hit
+    public void stop() throws IOException
+    {
+        // Not interrupt(), which would close the FileChannel mid-write
+        synchronized (this)
+        {
+            running = false;
+            notifyAll();
+        }
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) throw failure;
+    }
+}
@@ -0,0 +1,129 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+
+// Self-checking test of the replacement policies. Builds a synthetic trace
+// of a hot set that fits in the cache, broken up by full scans of a table
+// bigger than the cache, replays it through every policy and exits with an
+// error unless:
+//   - 2Q and TinyLFU hit at least as often as LRU, and
+//   - no policy evicts a hot page once the hot set is loaded, so the
+//     scans, marked as scans, push out nothing but scan pages.
+// As a check on the trace itself, LRU must lose hot pages when the same
+// trace is replayed without the scan marks.
+//
+// Run with: java PolicyCheck
+public class PolicyCheck
+{
+    private static final int CAPACITY = 200;
+    // Hot pages are blocks 1 to HOT, scan pages follow them
+    private static final int HOT = 100;
+    private static final int SCAN = 400;
+    private static final int WARMUP = 20000;
+    private static final int ROUNDS = 20;
+    private static final int HOT_PER_ROUND = 2000;
+
+    public static void main(String[] args) throws IOException
+    {
+        Path marked = Files.createTempFile("policy", ".trace");
+        Path unmarked = Files.createTempFile("policy", ".trace");
+        try
+        {
+            writeTrace(marked.toString(), true);
+            writeTrace(unmarked.toString(), false);
+
+            boolean ok = true;
+            long lruHits = 0L;
+            System.out.println("Cache of " + CAPACITY + " pages, " + HOT + " hot, scans of " + SCAN + ":");
+            for (String name : ReplacementPolicy.NAMES)
+            {
+                Watch watch = new Watch(ReplacementPolicy.create(name, CAPACITY));
+                long[] r = CacheTrace.replay(marked.toString(), CAPACITY, watch);
+                System.out.printf("%-8s hit ratio %.4f (%d of %d), hot pages evicted %d%n",
+                        name, (double) r[0] / r[1], r[0], r[1], watch.hotEvictions);
+                if (name.equals("lru")) lruHits = r[0];
+                else if (r[0] < lruHits)
+                {
+                    System.err.println("Error: " + name + " hits less often than lru.");
+                    ok = false;
+                }
+                if (watch.hotEvictions > 0L)
+                {
+                    System.err.println("Error: scans pushed hot pages out of " + name + ".");
+                    ok = false;
+                }
+            }
+
+            Watch plain = new Watch(ReplacementPolicy.create("lru", CAPACITY));
+            CacheTrace.replay(unmarked.toString(), CAPACITY, plain);
+            System.out.println("lru without scan marks, hot pages evicted " + plain.hotEvictions);
+            if (plain.hotEvictions == 0L)
+            {
+                System.err.println("Error: the trace does not stress the cache.");
+                ok = false;
+            }
+
+            if (!ok) System.exit(1);
+            System.out.println("All policy checks passed.");
+        }
+        finally
+        {
+            Files.deleteIfExists(marked);
+            Files.deleteIfExists(unmarked);
+        }
+    }
+
+    // The same accesses every time, with or without the scan marks
+    private static void writeTrace(String filename, boolean markScans) throws IOException
+    {
+        SplittableRandom random = new SplittableRandom(42);
+        try (CacheTrace trace = new CacheTrace(filename))
+        {
+            for (int i = 0; i < WARMUP; i++) trace.record(1 + random.nextInt(HOT), false);
+            for (int round = 0; round < ROUNDS; round++)
+            {
+                for (int i = 0; i < SCAN; i++) trace.record(HOT + 1 + i, markScans);
+                for (int i = 0; i < HOT_PER_ROUND; i++) trace.record(1 + random.nextInt(HOT), false);
+            }
+        }
+    }
+
+    // Passes everything on, counting evictions of hot pages
+    private static class Watch implements ReplacementPolicy
+    {
+        private final ReplacementPolicy policy;
+        long hotEvictions;
+
+        Watch(ReplacementPolicy policy)
+        {
+            this.policy = policy;
+        }
+
+        public void onHit(int frame, boolean scan)
+        {
+            policy.onHit(frame, scan);
+        }
+
+        public void onAdmit(int frame, long blockId, boolean scan)
+        {
+            policy.onAdmit(frame, blockId, scan);
+        }
+
+        public int victim()
+        {
+            return policy.victim();
+        }
+
+        public void onEvict(int frame, long blockId)
+        {
+            if (blockId <= HOT) hotEvictions++;
+            policy.onEvict(frame, blockId);
+        }
+
+        public void clear()
+        {
+            policy.clear();
+        }
+    }
+}
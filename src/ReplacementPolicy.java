@@ -0,0 +1,38 @@
+// Decides which NodeCache frame to evict. Frames are numbered from 0 to
+// capacity - 1, and the cache reports every access and admission to the policy.
+// Scan accesses come from in-order walks and are low priority.
+public interface ReplacementPolicy
+{
+    // Names accepted by create(), the first is the default
+    String[] NAMES = { "lru", "2q", "tinylfu" };
+
+    // A cached frame was accessed again
+    void onHit(int frame, boolean scan);
+
+    // blockId was loaded into a free or just evicted frame
+    void onAdmit(int frame, long blockId, boolean scan);
+
+    // Frame to evict, only asked for when every frame is in use
+    int victim();
+
+    // The frame holding blockId was evicted
+    void onEvict(int frame, long blockId);
+
+    // The cache was emptied
+    void clear();
+
+    static ReplacementPolicy create(String name, int capacity)
+    {
+        switch (name)
+        {
+            case "lru":
+                return new LruPolicy(capacity);
+            case "2q":
+                return new TwoQueuePolicy(capacity);
+            case "tinylfu":
+                return new TinyLfuPolicy(capacity);
+            default:
+                throw new IllegalArgumentException("Unknown cache policy '" + name + "'");
+        }
+    }
+}
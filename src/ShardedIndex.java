@@ -0,0 +1,511 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// One logical index spread over several index files, listed in a manifest
+public class ShardedIndex
+{
+    private static final String MAGIC = "4348SHRD";
+
+    // Pairs are passed between threads in batches of this many
+    private static final int BATCH = 1024;
+    private static final long[] END = new long[0];
+
+    // Upper bounds (exclusive) of each shard but the last, or null to partition by hash
+    private final long[] bounds;
+    private final String[] shardFiles;
+    private final IndexFileManager[] managers;
+    private final BTree[] trees;
+
+    public interface PairConsumer
+    {
+        void accept(long key, long value) throws IOException;
+    }
+
+    private ShardedIndex(String[] shardFiles, long[] bounds, int cacheCapacity, boolean direct, String policy) throws IOException
+    {
+        this.bounds = bounds;
+        this.shardFiles = shardFiles;
+        this.managers = new IndexFileManager[shardFiles.length];
+        this.trees = new BTree[shardFiles.length];
+        try
+        {
+            for (int i = 0; i < shardFiles.length; i++)
+            {
+                // Opening would create a missing shard empty, and hide that its keys are gone
+                if (!new File(shardFiles[i]).isFile()) throw new IOException("Shard file is missing: " + shardFiles[i]);
+                managers[i] = new IndexFileManager(shardFiles[i], cacheCapacity, direct, policy);
+                trees[i] = new BTree(managers[i]);
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // Close the shards opened so far
+            for (IndexFileManager mgr : managers)
+            {
+                if (mgr == null) continue;
+                try
+                {
+                    mgr.flushAndClose();
+                }
+                catch (IOException closeFailure)
+                {
+                    e.addSuppressed(closeFailure);
+                }
+            }
+            throw e;
+        }
+    }
+
+    // True if the file starts with the manifest magic
+    public static boolean isManifest(File f) throws IOException
+    {
+        if (!f.isFile() || f.length() < MAGIC.length()) return false;
+        try (Scanner sc = new Scanner(f, StandardCharsets.US_ASCII))
+        {
+            return sc.hasNextLine() && MAGIC.equals(sc.nextLine());
+        }
+    }
+
+    // Write the manifest and create an empty index file for each shard
+    public static void create(String manifest, int shards, long[] bounds, boolean counts) throws IOException
+    {
+        if (shards < 1) throw new IllegalArgumentException("Need at least one shard");
+        if (bounds != null && bounds.length != shards - 1)
+        {
+            throw new IllegalArgumentException("Need " + (shards - 1) + " range bounds for " + shards + " shards");
+        }
+
+        File m = new File(manifest);
+        Path dir = m.getAbsoluteFile().getParentFile().toPath();
+        // Never adopt a shard file left over from an earlier index
+        for (int i = 0; i < shards; i++)
+        {
+            Path shard = dir.resolve(m.getName() + "." + i);
+            if (Files.exists(shard)) throw new IllegalArgumentException("Shard file already exists: " + shard);
+        }
+        try (PrintWriter pw = new PrintWriter(m, StandardCharsets.US_ASCII))
+        {
+            pw.println(MAGIC);
+            if (bounds == null)
+            {
+                pw.println("hash");
+            }
+            else
+            {
+                StringBuilder sb = new StringBuilder("range");
+                for (long b : bounds) sb.append(' ').append(b);
+                pw.println(sb);
+            }
+            for (int i = 0; i < shards; i++)
+            {
+                String name = m.getName() + "." + i;
+                pw.println(name);
+                IndexFileManager mgr = new IndexFileManager(dir.resolve(name).toString());
+                if (counts) mgr.enableCounts();
+                mgr.flushAndClose();
+            }
+        }
+    }
+
+    // Open every shard listed in the manifest
+    public static ShardedIndex open(String manifest, int cacheCapacity, boolean direct, String policy) throws IOException
+    {
+        File m = new File(manifest).getAbsoluteFile();
+        List<String> lines = Files.readAllLines(m.toPath(), StandardCharsets.US_ASCII);
+        if (lines.size() < 3 || !MAGIC.equals(lines.get(0)))
+        {
+            throw new IOException("Invalid shard manifest: " + manifest);
+        }
+
+        long[] bounds = null;
+        String[] part = lines.get(1).trim().split(" ");
+        if (part[0].equals("range"))
+        {
+            bounds = new long[part.length - 1];
+            for (int i = 0; i < bounds.length; i++) bounds[i] = Long.parseLong(part[i + 1]);
+        }
+        else if (!part[0].equals("hash"))
+        {
+            throw new IOException("Invalid shard manifest: unknown partitioning '" + part[0] + "'");
+        }
+
+        // Names are relative to the manifest's directory, or absolute to put a shard elsewhere
+        Path dir = m.getParentFile().toPath();
+        List<String> files = new ArrayList<>();
+        for (int i = 2; i < lines.size(); i++)
+        {
+            String name = lines.get(i).trim();
+            if (!name.isEmpty()) files.add(dir.resolve(name).toString());
+        }
+        if (bounds != null && bounds.length != files.size() - 1)
+        {
+            throw new IOException("Invalid shard manifest: bounds do not match shard count");
+        }
+        return new ShardedIndex(files.toArray(new String[0]), bounds, cacheCapacity, direct, policy);
+    }
+
+    public int shardCount()
+    {
+        return trees.length;
+    }
+
+    public String getShardFile(int shard)
+    {
+        return shardFiles[shard];
+    }
+
+    public IndexFileManager getManager(int shard)
+    {
+        return managers[shard];
+    }
+
+    public BTree getTree(int shard)
+    {
+        return trees[shard];
+    }
+
+    // Which shard holds key
+    public int shardFor(long key)
+    {
+        if (bounds == null)
+        {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) Long.remainderUnsigned(h ^ (h >>> 32), trees.length);
+        }
+        int i = 0;
+        while (i < bounds.length && key >= bounds[i]) i++;
+        return i;
+    }
+
+    public void insert(long key, long value) throws IOException
+    {
+        trees[shardFor(key)].insert(key, value);
+    }
+
+    public long search(long key) throws IOException
+    {
+        return trees[shardFor(key)].search(key);
+    }
+
+    // Number of keys below key (or at or below it) across all shards
+    public long rank(long key, boolean inclusive) throws IOException
+    {
+        long rank = 0L;
+        for (BTree t : trees) rank += t.rank(key, inclusive);
+        return rank;
+    }
+
+    public long count(long lo, long hi) throws IOException
+    {
+        long n = 0L;
+        for (BTree t : trees) n += t.count(lo, hi);
+        return n;
+    }
+
+    // The k-th smallest key overall. Needs range partitioning, where the
+    // shards hold consecutive runs of keys.
+    public long[] select(long k) throws IOException
+    {
+        if (bounds == null) throw new IllegalStateException("Select needs a range partitioned index");
+        if (k < 1) return null;
+        for (BTree t : trees)
+        {
+            long size = t.size();
+            if (k <= size) return t.select(k);
+            k -= size;
+        }
+        return null;
+    }
+
+    // Read the CSV once and insert into all shards in parallel
+    public void loadCSV(File csv) throws IOException
+    {
+        int n = trees.length;
+        List<BlockingQueue<long[]>> queues = new ArrayList<>();
+        for (int i = 0; i < n; i++) queues.add(new ArrayBlockingQueue<>(16));
+
+        ExecutorService pool = Executors.newFixedThreadPool(n);
+        // Set to stop the workers between batches when loading fails
+        AtomicBoolean cancel = new AtomicBoolean();
+        List<Future<?>> workers = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+        {
+            final BTree tree = trees[i];
+            final BlockingQueue<long[]> q = queues.get(i);
+            workers.add(pool.submit(() ->
+            {
+                while (!cancel.get())
+                {
+                    long[] batch = q.poll(100, TimeUnit.MILLISECONDS);
+                    if (batch == END) return null;
+                    if (batch == null) continue;
+                    for (int j = 0; j < batch.length; j += 2) tree.insert(batch[j], batch[j + 1]);
+                }
+                return null;
+            }));
+        }
+
+        try
+        {
+            long[][] pending = new long[n][2 * BATCH];
+            int[] used = new int[n];
+            try (Scanner sc = new Scanner(csv))
+            {
+                while (sc.hasNextLine())
+                {
+                    String line = sc.nextLine().trim();
+                    if (line.isEmpty()) continue;
+                    String[] parts = line.split(",");
+                    if (parts.length != 2)
+                    {
+                        System.err.println("Skipping invalid line: " + line);
+                        continue;
+                    }
+                    long k = Long.parseLong(parts[0].trim());
+                    long v = Long.parseLong(parts[1].trim());
+                    int s = shardFor(k);
+                    pending[s][used[s]++] = k;
+                    pending[s][used[s]++] = v;
+                    if (used[s] == pending[s].length)
+                    {
+                        handOff(queues.get(s), pending[s], workers.get(s));
+                        pending[s] = new long[2 * BATCH];
+                        used[s] = 0;
+                    }
+                }
+            }
+            for (int s = 0; s < n; s++)
+            {
+                if (used[s] > 0) handOff(queues.get(s), Arrays.copyOf(pending[s], used[s]), workers.get(s));
+                handOff(queues.get(s), END, workers.get(s));
+            }
+            for (Future<?> w : workers) await(w);
+        }
+        finally
+        {
+            cancel.set(true);
+            stop(pool);
+        }
+    }
+
+    // Wait for workers to see the cancel flag and finish. Not shutdownNow(),
+    // whose interrupts would close the shard files mid-write.
+    private static void stop(ExecutorService pool) throws IOException
+    {
+        pool.shutdown();
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                if (pool.awaitTermination(1, TimeUnit.SECONDS)) break;
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    // Queue a scan batch, giving up if the scan was cancelled
+    private static boolean offer(BlockingQueue<long[]> q, long[] batch, AtomicBoolean cancel) throws InterruptedException
+    {
+        while (!q.offer(batch, 100, TimeUnit.MILLISECONDS))
+        {
+            if (cancel.get()) return false;
+        }
+        return true;
+    }
+
+    // Queue a batch, giving up if the worker has already failed
+    private static void handOff(BlockingQueue<long[]> q, long[] batch, Future<?> worker) throws IOException
+    {
+        try
+        {
+            while (!q.offer(batch, 100, TimeUnit.MILLISECONDS))
+            {
+                if (worker.isDone()) await(worker);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading shards");
+        }
+    }
+
+    private static void await(Future<?> f) throws IOException
+    {
+        try
+        {
+            f.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for shard");
+        }
+        catch (ExecutionException e)
+        {
+            Throwable c = e.getCause();
+            if (c instanceof IOException) throw (IOException) c;
+            if (c instanceof RuntimeException) throw (RuntimeException) c;
+            throw new IOException(c);
+        }
+    }
+
+    // Pass every pair with lo <= key <= hi to out in key order.
+    // Each shard is scanned by its own thread and the results are merged here.
+    public void scan(long lo, long hi, PairConsumer out) throws IOException
+    {
+        // Cursors read the trees, so merge any buffered inserts first
+        for (BTree t : trees) t.mergeBuffer();
+
+        List<Integer> live = new ArrayList<>();
+        for (int i = 0; i < trees.length; i++)
+        {
+            // With range partitioning skip shards that cannot hold [lo, hi]
+            if (bounds != null)
+            {
+                if (i > 0 && hi < bounds[i - 1]) continue;
+                if (i < bounds.length && lo >= bounds[i]) continue;
+            }
+            live.add(i);
+        }
+        int n = live.size();
+        if (n == 0) return;
+
+        // Snapshots are opened here, on the caller's thread, between its writes
+        List<Snapshot> snaps = new ArrayList<>();
+        List<BlockingQueue<long[]>> queues = new ArrayList<>();
+        List<Future<?>> workers = new ArrayList<>();
+        try
+        {
+            for (int s : live) snaps.add(managers[s].openSnapshot());
+        }
+        catch (IOException e)
+        {
+            for (Snapshot snap : snaps) snap.close();
+            throw e;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(n);
+        // Set when the merge stops early, so workers stop filling their queues
+        AtomicBoolean cancel = new AtomicBoolean();
+        for (Snapshot snap : snaps)
+        {
+            final BlockingQueue<long[]> q = new ArrayBlockingQueue<>(16);
+            queues.add(q);
+            workers.add(pool.submit(() ->
+            {
+                try
+                {
+                    BTreeCursor c = new BTreeCursor(snap);
+                    c.seek(lo);
+                    long[] batch = new long[2 * BATCH];
+                    int used = 0;
+                    while (c.next() && c.key() <= hi)
+                    {
+                        batch[used++] = c.key();
+                        batch[used++] = c.value();
+                        if (used == batch.length)
+                        {
+                            if (!offer(q, batch, cancel)) return null;
+                            batch = new long[2 * BATCH];
+                            used = 0;
+                        }
+                    }
+                    if (used > 0 && !offer(q, Arrays.copyOf(batch, used), cancel)) return null;
+                }
+                finally
+                {
+                    offer(q, END, cancel);
+                }
+                return null;
+            }));
+        }
+
+        try
+        {
+            // Current batch and position for each shard, null once it is drained
+            long[][] head = new long[n][];
+            int[] pos = new int[n];
+            for (int i = 0; i < n; i++) head[i] = take(queues.get(i), workers.get(i));
+
+            while (true)
+            {
+                int min = -1;
+                for (int i = 0; i < n; i++)
+                {
+                    if (head[i] == null) continue;
+                    if (min < 0 || head[i][pos[i]] < head[min][pos[min]]) min = i;
+                }
+                if (min < 0) break;
+
+                out.accept(head[min][pos[min]], head[min][pos[min] + 1]);
+                pos[min] += 2;
+                if (pos[min] == head[min].length)
+                {
+                    head[min] = take(queues.get(min), workers.get(min));
+                    pos[min] = 0;
+                }
+            }
+        }
+        finally
+        {
+            cancel.set(true);
+            stop(pool);
+            for (Snapshot snap : snaps) snap.close();
+        }
+    }
+
+    // Next batch from a scan worker, or null when it has finished
+    private static long[] take(BlockingQueue<long[]> q, Future<?> worker) throws IOException
+    {
+        try
+        {
+            long[] batch = q.take();
+            if (batch != END) return batch;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scanning shards");
+        }
+        await(worker);
+        return null;
+    }
+
+    public void close() throws IOException
+    {
+        IOException first = null;
+        for (BTree t : trees)
+        {
+            try
+            {
+                t.close();
+            }
+            catch (IOException e)
+            {
+                if (first == null) first = e;
+            }
+        }
+        if (first != null) throw first;
+    }
+}
@@ -0,0 +1,49 @@
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+// Frozen view of an index as of when it was opened. Pages that writers
+// overwrite afterwards are copied aside first and read from there.
+public class Snapshot implements NodeReader, AutoCloseable
+{
+    private final IndexFileManager mgr;
+    private final long rootBlockId;
+    // Blocks below this existed when the snapshot was opened
+    private final long highWater;
+    // Block id -> slot in the manager's shadow file holding its old contents
+    final Map<Long, Integer> preserved = new HashMap<>();
+    private boolean closed;
+
+    Snapshot(IndexFileManager mgr, long rootBlockId, long highWater)
+    {
+        this.mgr = mgr;
+        this.rootBlockId = rootBlockId;
+        this.highWater = highWater;
+    }
+
+    public long getRootBlockId()
+    {
+        return rootBlockId;
+    }
+
+    // True if the snapshot can see this block and has not copied it yet
+    boolean needsCopy(long blockId)
+    {
+        return blockId < highWater && !preserved.containsKey(blockId);
+    }
+
+    public BTreeNode readNode(long blockId) throws IOException
+    {
+        if (closed) throw new IllegalStateException("Snapshot is closed");
+        if (blockId == 0L || blockId >= highWater) throw new IOException("Block " + blockId + " is not in snapshot");
+        return BTreeNode.fromBytes(mgr.readSnapshotBlock(this, blockId), mgr.hasCounts());
+    }
+
+    // Release the copied pages
+    public void close() throws IOException
+    {
+        if (closed) return;
+        closed = true;
+        mgr.releaseSnapshot(this);
+    }
+}
@@ -0,0 +1,120 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+// Read-only copy of an index in primitive arrays, for serving lookups
+// without the cache, the file or any locking.
+//
+// Pairs are kept twice: sorted, for range scans, and in Eytzinger order (the
+// implicit binary heap layout, children of slot k at 2k and 2k + 1) for
+// searching. The top levels of the heap share a few cache lines that stay
+// hot. The heap is padded to a complete tree with Long.MAX_VALUE, so every
+// search takes the same number of steps with no branch on the comparison.
+public class StaticIndex
+{
+    private static final long PAD = Long.MAX_VALUE;
+
+    private final int n;
+    private final long[] keys;
+    private final long[] values;
+    // Levels in the complete heap
+    private final int depth;
+    // Heap from slot 1, with each slot's value and position in keys
+    private final long[] eytzinger;
+    private final long[] eytzingerValues;
+    private final int[] position;
+
+    private StaticIndex(long[] keys, long[] values, int n)
+    {
+        this.n = n;
+        this.keys = keys;
+        this.values = values;
+        this.depth = 32 - Integer.numberOfLeadingZeros(n);
+        int slots = 1 << depth;
+        this.eytzinger = new long[slots];
+        this.eytzingerValues = new long[slots];
+        this.position = new int[slots];
+        fill(1, 0);
+    }
+
+    // Load every pair with one in-order walk of the tree
+    public static StaticIndex load(NodeReader reader) throws IOException
+    {
+        long[] keys = new long[1024];
+        long[] values = new long[1024];
+        int n = 0;
+        BTreeCursor c = new BTreeCursor(reader);
+        while (c.next())
+        {
+            if (n == keys.length)
+            {
+                if (n >= 1 << 29) throw new IOException("Index is too large to hold in memory");
+                keys = Arrays.copyOf(keys, n * 2);
+                values = Arrays.copyOf(values, n * 2);
+            }
+            keys[n] = c.key();
+            values[n] = c.value();
+            n++;
+        }
+        return new StaticIndex(Arrays.copyOf(keys, n), Arrays.copyOf(values, n), n);
+    }
+
+    // Place the sorted keys into the heap by an in-order walk of it, padding after the last
+    private int fill(int k, int i)
+    {
+        // Recursive on the left child and a loop on the right, so depth stays log n
+        while (k < eytzinger.length)
+        {
+            i = fill(2 * k, i);
+            if (i < n)
+            {
+                eytzinger[k] = keys[i];
+                eytzingerValues[k] = values[i];
+            }
+            else
+            {
+                eytzinger[k] = PAD;
+            }
+            position[k] = Math.min(i++, n);
+            k = 2 * k + 1;
+        }
+        return i;
+    }
+
+    public int size()
+    {
+        return n;
+    }
+
+    // Heap slot of the first key >= key, or 0 if none
+    private int descend(long key)
+    {
+        int k = 1;
+        for (int d = 0; d < depth; d++) k = 2 * k + (eytzinger[k] < key ? 1 : 0);
+        // Undo the right turns taken after the last left turn
+        return k >>> (Integer.numberOfTrailingZeros(~k) + 1);
+    }
+
+    // Position in key order of the first key >= key, or size() if none
+    public int lowerBound(long key)
+    {
+        int k = descend(key);
+        return k == 0 ? n : position[k];
+    }
+
+    // Value for key, or -1 if not found, like BTree.search
+    public long search(long key)
+    {
+        int k = descend(key);
+        return k != 0 && position[k] < n && eytzinger[k] == key ? eytzingerValues[k] : -1L;
+    }
+
+    public long getKey(int i)
+    {
+        return keys[i];
+    }
+
+    public long getValue(int i)
+    {
+        return values[i];
+    }
+}
@@ -0,0 +1,158 @@
+// W-TinyLFU (Einziger, Friedman and Manes). A small LRU window takes new
+// pages. When the cache is full, the oldest window page only gets into the
+// main area if it has been used more often than the page it would push out,
+// judging by a count-min sketch of recent access frequencies. The main area
+// is a segmented LRU: pages hit again move from probation to protected.
+//
+// Scan accesses are not counted in the sketch and promote nothing, and scan
+// pages enter at the old end of the window, so scanned pages lose every
+// admission contest against pages in real use.
+public class TinyLfuPolicy implements ReplacementPolicy
+{
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final long[] SEEDS = {
+        0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL, 0xCBF29CE484222325L };
+
+    private final FrameLists lists;
+    private final long[] blockOf;
+    private final int maxWindow;
+    private final int maxProtected;
+
+    // Sketch: 4 bit counters, 16 to a long, 4 counters per block id.
+    // All counters are halved after sampleSize increments so old
+    // popularity fades.
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+
+    public TinyLfuPolicy(int capacity)
+    {
+        lists = new FrameLists(capacity, 3);
+        blockOf = new long[capacity];
+        maxWindow = Math.max(1, capacity / 100);
+        maxProtected = (capacity - maxWindow) * 4 / 5;
+        int size = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+        table = new long[size];
+        tableMask = size - 1;
+        sampleSize = 10 * Math.max(16, capacity);
+    }
+
+    public void onHit(int frame, boolean scan)
+    {
+        if (scan) return;
+        increment(blockOf[frame]);
+        switch (lists.listOf(frame))
+        {
+            case WINDOW:
+                lists.moveToLast(WINDOW, frame);
+                break;
+            case PROBATION:
+                lists.remove(frame);
+                lists.addLast(PROTECTED, frame);
+                if (lists.size(PROTECTED) > maxProtected)
+                {
+                    int demoted = lists.first(PROTECTED);
+                    lists.remove(demoted);
+                    lists.addLast(PROBATION, demoted);
+                }
+                break;
+            default:
+                lists.moveToLast(PROTECTED, frame);
+        }
+    }
+
+    public void onAdmit(int frame, long blockId, boolean scan)
+    {
+        blockOf[frame] = blockId;
+        if (!scan) increment(blockId);
+        // A scan page is the window's next candidate, so a scan recycles one
+        // frame instead of pushing the window's other pages on
+        if (scan) lists.addFirst(WINDOW, frame);
+        else lists.addLast(WINDOW, frame);
+        // While the cache is filling, overflow from the window goes straight to probation
+        if (lists.size(WINDOW) > maxWindow)
+        {
+            int moved = lists.first(WINDOW);
+            lists.remove(moved);
+            lists.addLast(PROBATION, moved);
+        }
+    }
+
+    // The oldest window page against the main area's next victim
+    public int victim()
+    {
+        int candidate = lists.first(WINDOW);
+        int main = lists.first(PROBATION);
+        if (main == FrameLists.NONE) main = lists.first(PROTECTED);
+        if (main == FrameLists.NONE) return candidate;
+        if (candidate == FrameLists.NONE) return main;
+
+        if (frequency(blockOf[candidate]) > frequency(blockOf[main]))
+        {
+            // The candidate moves to the main area, the window frees up for the new page
+            lists.remove(candidate);
+            lists.addLast(PROBATION, candidate);
+            return main;
+        }
+        return candidate;
+    }
+
+    public void onEvict(int frame, long blockId)
+    {
+        lists.remove(frame);
+    }
+
+    public void clear()
+    {
+        lists.clear();
+    }
+
+    private void increment(long blockId)
+    {
+        boolean added = false;
+        for (long seed : SEEDS)
+        {
+            long h = hash(blockId, seed);
+            int i = (int) h & tableMask;
+            int shift = (int) (h >>> 60) << 2;
+            if (((table[i] >>> shift) & 0xFL) < 15L)
+            {
+                table[i] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) reset();
+    }
+
+    private int frequency(long blockId)
+    {
+        long min = 15L;
+        for (long seed : SEEDS)
+        {
+            long h = hash(blockId, seed);
+            int i = (int) h & tableMask;
+            int shift = (int) (h >>> 60) << 2;
+            min = Math.min(min, (table[i] >>> shift) & 0xFL);
+        }
+        return (int) min;
+    }
+
+    // Halve every counter
+    private void reset()
+    {
+        for (int i = 0; i < table.length; i++) table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+        additions /= 2;
+    }
+
+    private static long hash(long blockId, long seed)
+    {
+        long h = (blockId + seed) * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 31;
+        h *= 0xBF58476D1CE4E5B9L;
+        return h ^ (h >>> 29);
+    }
+}
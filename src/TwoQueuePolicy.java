@@ -0,0 +1,87 @@
+// 2Q (Johnson and Shasha). New pages enter a FIFO, A1in, and only pages
+// referenced again after falling out of it, which a ghost queue of recently
+// evicted block ids remembers, are promoted to the main LRU, Am. A page read
+// once is gone without disturbing Am.
+//
+// Scan pages always go to the old end of A1in and are evicted first without
+// a ghost entry, so a scan never pushes anything out of Am.
+public class TwoQueuePolicy implements ReplacementPolicy
+{
+    private static final int A1IN = 0;
+    private static final int AM = 1;
+
+    private final FrameLists lists;
+    private final int maxIn;
+    // Frames admitted by a scan and not accessed otherwise since
+    private final boolean[] scanOnly;
+
+    // Ghost queue A1out: a ring of block ids and their ring slots
+    private final long[] ghostRing;
+    private final LongIntMap ghostSlot;
+    private int ghostNext;
+
+    public TwoQueuePolicy(int capacity)
+    {
+        lists = new FrameLists(capacity, 2);
+        maxIn = Math.max(1, capacity / 4);
+        scanOnly = new boolean[capacity];
+        int ghosts = Math.max(1, capacity / 2);
+        ghostRing = new long[ghosts];
+        ghostSlot = new LongIntMap(ghosts);
+    }
+
+    public void onHit(int frame, boolean scan)
+    {
+        if (scan) return;
+        scanOnly[frame] = false;
+        // Hits in A1in are taken as correlated and leave it alone
+        if (lists.listOf(frame) == AM) lists.moveToLast(AM, frame);
+    }
+
+    public void onAdmit(int frame, long blockId, boolean scan)
+    {
+        scanOnly[frame] = scan;
+        if (scan)
+        {
+            lists.addFirst(A1IN, frame);
+        }
+        else if (ghostSlot.get(blockId) >= 0)
+        {
+            ghostSlot.remove(blockId);
+            lists.addLast(AM, frame);
+        }
+        else
+        {
+            lists.addLast(A1IN, frame);
+        }
+    }
+
+    public int victim()
+    {
+        int in = lists.first(A1IN);
+        if (in != FrameLists.NONE && (scanOnly[in] || lists.size(A1IN) > maxIn || lists.size(AM) == 0)) return in;
+        return lists.first(AM);
+    }
+
+    public void onEvict(int frame, long blockId)
+    {
+        if (lists.listOf(frame) == A1IN && !scanOnly[frame]) remember(blockId);
+        lists.remove(frame);
+    }
+
+    // Add to A1out, forgetting the oldest ghost when full
+    private void remember(long blockId)
+    {
+        long old = ghostRing[ghostNext];
+        if (ghostSlot.get(old) == ghostNext) ghostSlot.remove(old);
+        ghostRing[ghostNext] = blockId;
+        ghostSlot.put(blockId, ghostNext);
+        ghostNext = (ghostNext + 1) % ghostRing.length;
+    }
+
+    public void clear()
+    {
+        lists.clear();
+        ghostSlot.clear();
+    }
+}